@@ -0,0 +1,314 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * crop several regions of the photo in one pass. the source is opened once,
+ * overlapping regions are merged and decoded together at the resolution the
+ * largest output of them requires, and the groups are cropped in parallel.
+ * the region decoder is shared and synchronized, so the groups decode one at
+ * a time while their outputs are scaled and rotated in parallel
+ */
+final class BatchCropper implements Runnable {
+
+    public static final String TAG = "BatchCropper";
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private Context context;
+
+    private Uri source;
+
+    private Bitmap bitmap;
+
+    private List<PhotoView.CropRequest> requests;
+
+    private float rotation;
+
+    private Bitmap.Config config;
+
+    private PhotoView.BatchCropCallback callback;
+
+    private Bitmap[] results;
+
+    private AtomicInteger pendingGroups;
+
+    private BitmapRegionDecoder decoder;
+
+    /**
+     * @param source   the source of the photo, null to crop the bitmap only
+     * @param bitmap   the bitmap displayed in the view
+     * @param requests the regions normalized to the photo size and the sizes
+     *                 of the outputs
+     * @param rotation the rotation applied to the outputs
+     */
+    BatchCropper(Context context, Uri source, Bitmap bitmap,
+            List<PhotoView.CropRequest> requests, float rotation, Bitmap.Config config,
+            PhotoView.BatchCropCallback callback) {
+        this.context = context.getApplicationContext();
+        this.source = source;
+        this.bitmap = bitmap;
+        this.requests = new ArrayList<PhotoView.CropRequest>(requests);
+        this.rotation = rotation;
+        this.config = config;
+        this.callback = callback;
+        this.results = new Bitmap[requests.size()];
+    }
+
+    public void start() {
+        WORKERS.execute(this);
+    }
+
+    @Override
+    public void run() {
+        int width, height;
+        if (source != null && VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD_MR1 && openDecoder()) {
+            width = decoder.getWidth();
+            height = decoder.getHeight();
+        } else if (bitmap != null) {
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+        } else {
+            finish();
+            return;
+        }
+
+        List<Group> groups = groupRequests(width, height);
+        if (PhotoView.DEBUG) {
+            Log.d(TAG, requests.size() + " crops in " + groups.size() + " groups");
+        }
+        if (groups.isEmpty()) {
+            finish();
+            return;
+        }
+        pendingGroups = new AtomicInteger(groups.size());
+        for (final Group group : groups) {
+            WORKERS.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        cropGroup(group);
+                    } catch (OutOfMemoryError e) {
+                        Log.w(TAG, "crop out of memory", e);
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "crop " + group.bounds.toShortString() + " failed", e);
+                    } finally {
+                        if (pendingGroups.decrementAndGet() == 0) {
+                            finish();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * release the decoder and deliver the outputs, the failed ones are null
+     */
+    private void finish() {
+        releaseDecoder();
+        deliver();
+    }
+
+    @TargetApi(VERSION_CODES.GINGERBREAD_MR1)
+    private boolean openDecoder() {
+        InputStream stream = null;
+        try {
+            stream = DecodeUtils.openStream(context, source);
+            decoder = BitmapRegionDecoder.newInstance(stream, false);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "open " + source + " failed", e);
+            return false;
+        } finally {
+            DecodeUtils.closeQuietly(stream);
+        }
+    }
+
+    @TargetApi(VERSION_CODES.GINGERBREAD_MR1)
+    private void releaseDecoder() {
+        if (decoder != null) {
+            decoder.recycle();
+            decoder = null;
+        }
+    }
+
+    /**
+     * merge the overlapping regions, a new region is merged with the groups
+     * it overlaps until it overlaps none of them
+     */
+    List<Group> groupRequests(int width, int height) {
+        List<Group> groups = new ArrayList<Group>();
+        for (int i = 0; i < requests.size(); i++) {
+            RectF region = requests.get(i).getRegion();
+            Rect rect = new Rect(Math.round(region.left * width), Math.round(region.top * height),
+                    Math.round(region.right * width), Math.round(region.bottom * height));
+            if (!rect.intersect(0, 0, width, height) || rect.isEmpty()) {
+                continue;
+            }
+
+            Group group = new Group();
+            group.bounds.set(rect);
+            group.indexes.add(i);
+            group.rects.add(rect);
+            boolean merged = true;
+            while (merged) {
+                merged = false;
+                for (int j = groups.size() - 1; j >= 0; j--) {
+                    Group other = groups.get(j);
+                    if (Rect.intersects(other.bounds, group.bounds)) {
+                        group.merge(other);
+                        groups.remove(j);
+                        merged = true;
+                    }
+                }
+            }
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private void cropGroup(Group group) {
+        int sampleSize = Integer.MAX_VALUE;
+        for (int i = 0; i < group.indexes.size(); i++) {
+            PhotoView.CropRequest request = requests.get(group.indexes.get(i));
+            Rect rect = group.rects.get(i);
+            int outWidth = request.getWidth();
+            int outHeight = request.getHeight();
+            if (rotation % 180 != 0) {
+                outWidth = request.getHeight();
+                outHeight = request.getWidth();
+            }
+            sampleSize = Math.min(sampleSize, DecodeUtils.calculateSampleSize(
+                    rect.width(), rect.height(), outWidth, outHeight));
+        }
+
+        Bitmap decoded;
+        float scale;
+        if (decoder != null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            decoded = decodeRegion(group.bounds, options);
+            scale = 1f / sampleSize;
+        } else {
+            decoded = bitmap;
+            scale = 1;
+        }
+        if (decoded == null) {
+            return;
+        }
+        if (PhotoView.DEBUG) {
+            Log.d(TAG, "cropGroup " + group.bounds.toShortString() + " sample " + sampleSize);
+        }
+
+        float offsetX = decoder != null ? group.bounds.left : 0;
+        float offsetY = decoder != null ? group.bounds.top : 0;
+        Matrix matrix = new Matrix();
+        RectF src = new RectF();
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        try {
+            for (int i = 0; i < group.indexes.size(); i++) {
+                int index = group.indexes.get(i);
+                PhotoView.CropRequest request = requests.get(index);
+                Rect rect = group.rects.get(i);
+                src.set((rect.left - offsetX) * scale, (rect.top - offsetY) * scale,
+                        (rect.right - offsetX) * scale, (rect.bottom - offsetY) * scale);
+
+                matrix.setTranslate(-src.left, -src.top);
+                matrix.postRotate(rotation);
+                RectF bounds = new RectF(0, 0, src.width(), src.height());
+                Matrix rotate = new Matrix();
+                rotate.setRotate(rotation);
+                rotate.mapRect(bounds);
+                matrix.postTranslate(-bounds.left, -bounds.top);
+                matrix.postScale(request.getWidth() / bounds.width(),
+                        request.getHeight() / bounds.height());
+
+                Bitmap output = Bitmap.createBitmap(request.getWidth(), request.getHeight(),
+                        config);
+                Canvas canvas = new Canvas(output);
+                canvas.drawBitmap(decoded, matrix, paint);
+                results[index] = output;
+            }
+        } finally {
+            if (decoded != bitmap) {
+                decoded.recycle();
+            }
+        }
+    }
+
+    @TargetApi(VERSION_CODES.GINGERBREAD_MR1)
+    private Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        return decoder.decodeRegion(rect, options);
+    }
+
+    private void deliver() {
+        PhotoLoader.HANDLER.post(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onCropped(results);
+            }
+        });
+    }
+
+    static class Group {
+
+        private Rect bounds;
+
+        private List<Integer> indexes;
+
+        private List<Rect> rects;
+
+        Group() {
+            this.bounds = new Rect();
+            this.indexes = new ArrayList<Integer>();
+            this.rects = new ArrayList<Rect>();
+        }
+
+        public Rect getBounds() {
+            return bounds;
+        }
+
+        /**
+         * the indexes of the requests in the group
+         */
+        public List<Integer> getIndexes() {
+            return indexes;
+        }
+
+        void merge(Group other) {
+            bounds.union(other.bounds);
+            indexes.addAll(other.indexes);
+            rects.addAll(other.rects);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * a process wide lru cache of decoded bitmaps keyed by the source, the
+ * decode size and the pixel format, the size is accounted in bytes. the
+ * entries are reference counted and an entry in use is never evicted, it is
+ * shrunk on the trim memory callbacks. the bitmaps derived from the entries
+ * reserve their bytes in the same budget
+ */
+public final class BitmapCache {
+
+    public static final String TAG = "BitmapCache";
+
+    private static final int DEFAULT_SIZE_DIVIDER = 8;
+
+    private static BitmapCache instance;
+
+    private LinkedHashMap<String, Entry> entries;
+
+    private int maxSize;
+
+    private int size;
+
+    private int reservedSize;
+
+    public static class Entry {
+
+        private String key;
+
+        private Bitmap bitmap;
+
+        private int size;
+
+        private int refCount;
+
+        Entry(String key, Bitmap bitmap) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.size = getByteCount(bitmap);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+    }
+
+    public static synchronized BitmapCache getInstance(Context context) {
+        if (instance == null) {
+            int maxSize = (int) (Runtime.getRuntime().maxMemory() / DEFAULT_SIZE_DIVIDER);
+            instance = new BitmapCache(maxSize);
+            instance.register(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    BitmapCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    public static String getKey(Uri uri, int reqWidth, int reqHeight, Bitmap.Config config) {
+        return uri + "@" + reqWidth + "x" + reqHeight + "/" + config;
+    }
+
+    @TargetApi(VERSION_CODES.HONEYCOMB_MR1)
+    public static int getByteCount(Bitmap bitmap) {
+        if (VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB_MR1) {
+            return bitmap.getByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * get the entry and hold a reference to it, or null if missed. the
+     * reference is returned by {@link #release(Entry)}
+     */
+    public synchronized Entry acquire(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.refCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * acquire the source decoded for the size in a format the pixel policy
+     * accepts, ARGB_8888 first
+     *
+     * @param pixelPolicy see {@link PhotoView#setPixelPolicy(int)}
+     */
+    public synchronized Entry acquire(Uri uri, int reqWidth, int reqHeight, int pixelPolicy) {
+        Entry entry = acquire(getKey(uri, reqWidth, reqHeight, Bitmap.Config.ARGB_8888));
+        if (entry == null && pixelPolicy != PhotoView.PIXEL_QUALITY) {
+            entry = acquire(getKey(uri, reqWidth, reqHeight, Bitmap.Config.RGB_565));
+        }
+        return entry;
+    }
+
+    /**
+     * add the bitmap and hold a reference to it, an existing entry of the
+     * key is returned instead if there is one
+     */
+    public synchronized Entry put(String key, Bitmap bitmap) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, bitmap);
+            entries.put(key, entry);
+            size += entry.size;
+        }
+        entry.refCount++;
+        trimToSize(maxSize);
+        return entry;
+    }
+
+    /**
+     * account the bytes of a bitmap held out of the cache, the entries not in
+     * use are evicted to make room. false if the entries in use and the
+     * reserved bytes leave no room, the bytes are not reserved then
+     */
+    public synchronized boolean reserve(int bytes) {
+        int pinned = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.refCount > 0) {
+                pinned += entry.size;
+            }
+        }
+        if (reservedSize + pinned + bytes > maxSize) {
+            if (PhotoView.DEBUG) {
+                Log.d(TAG, "reserve " + bytes + " over budget, reserved " + reservedSize);
+            }
+            return false;
+        }
+        reservedSize += bytes;
+        size += bytes;
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * return the bytes reserved by {@link #reserve(int)}
+     */
+    public synchronized void unreserve(int bytes) {
+        reservedSize -= bytes;
+        size -= bytes;
+    }
+
+    public synchronized void release(Entry entry) {
+        if (entry.refCount <= 0) {
+            Log.w(TAG, "release an entry not in use " + entry.key);
+            return;
+        }
+        entry.refCount--;
+        if (entry.refCount == 0 && size > maxSize) {
+            trimToSize(maxSize);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * evict the least recently used entries not in use until the size is
+     * not larger than the given size
+     */
+    public synchronized void trimToSize(int targetSize) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > targetSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.refCount > 0) {
+                continue;
+            }
+            iterator.remove();
+            size -= entry.size;
+            if (PhotoView.DEBUG) {
+                Log.d(TAG, "evict " + entry.key + " size " + size);
+            }
+        }
+    }
+
+    public void trimMemory(int level) {
+        if (PhotoView.DEBUG) {
+            Log.d(TAG, "trimMemory level " + level);
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)) {
+            PixelPolicy.notifyMemoryPressure();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxSize / 2);
+        }
+    }
+
+    @TargetApi(VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void register(Context context) {
+        if (VERSION.SDK_INT < VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                PixelPolicy.notifyMemoryPressure();
+                trimToSize(0);
+            }
+        });
+    }
+}
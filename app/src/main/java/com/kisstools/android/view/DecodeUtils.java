@@ -0,0 +1,58 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+final class DecodeUtils {
+
+    public static final String TAG = "DecodeUtils";
+
+    private DecodeUtils() {
+    }
+
+    /**
+     * get the largest power of two sample size which keeps the decoded
+     * image not smaller than the required size
+     */
+    public static int calculateSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        while ((halfWidth / sampleSize) >= reqWidth && (halfHeight / sampleSize) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    public static InputStream openStream(Context context, Uri uri) throws IOException {
+        InputStream stream = context.getContentResolver().openInputStream(uri);
+        if (stream == null) {
+            throw new IOException("can not open " + uri);
+        }
+        return stream;
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+    }
+}
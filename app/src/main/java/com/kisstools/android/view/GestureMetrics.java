@@ -0,0 +1,385 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.Trace;
+import android.view.WindowManager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * frame and input metrics of the gestures of a photo view. a session lasts
+ * while the view stays in one gesture state, its frames, dropped frames,
+ * worst frame interval, draw and touch time and matrix commits are reported
+ * to the listener and added to the histograms of the state. the histograms
+ * are lock free and can be read from any thread.
+ *
+ * the frame intervals are only measured for the frames requested by a
+ * matrix commit, so a pause of the gesture with nothing to draw is not
+ * counted as dropped frames
+ */
+public class GestureMetrics {
+
+    public static final int GESTURE_NONE = 0;
+
+    public static final int GESTURE_DRAG = 1;
+
+    public static final int GESTURE_SCALE = 2;
+
+    public static final int GESTURE_FLING = 3;
+
+    public static final int GESTURE_TRANSLATE = 4;
+
+    private static final int GESTURE_COUNT = 5;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final float DEFAULT_REFRESH_RATE = 60;
+
+    public static interface Listener {
+
+        /**
+         * called on the main thread when a session ends
+         */
+        public void onSession(Session session);
+    }
+
+    private long frameInterval;
+
+    private Listener listener;
+
+    private Session session;
+
+    private Histogram[] frameIntervals;
+
+    private Histogram[] drawTimes;
+
+    private Histogram[] touchTimes;
+
+    private AtomicLongArray sessions;
+
+    private AtomicLongArray frames;
+
+    private AtomicLongArray droppedFrames;
+
+    private AtomicLongArray commits;
+
+    public GestureMetrics(Context context) {
+        WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = manager.getDefaultDisplay().getRefreshRate();
+        if (refreshRate <= 0) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        this.frameInterval = (long) (NANOS_PER_SECOND / refreshRate);
+        this.frameIntervals = new Histogram[GESTURE_COUNT];
+        this.drawTimes = new Histogram[GESTURE_COUNT];
+        this.touchTimes = new Histogram[GESTURE_COUNT];
+        for (int i = 0; i < GESTURE_COUNT; i++) {
+            frameIntervals[i] = new Histogram();
+            drawTimes[i] = new Histogram();
+            touchTimes[i] = new Histogram();
+        }
+        this.sessions = new AtomicLongArray(GESTURE_COUNT);
+        this.frames = new AtomicLongArray(GESTURE_COUNT);
+        this.droppedFrames = new AtomicLongArray(GESTURE_COUNT);
+        this.commits = new AtomicLongArray(GESTURE_COUNT);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * the interval between the frames in nanoseconds of the gesture
+     */
+    public Histogram getFrameIntervals(int gesture) {
+        return frameIntervals[gesture];
+    }
+
+    public Histogram getDrawTimes(int gesture) {
+        return drawTimes[gesture];
+    }
+
+    public Histogram getTouchTimes(int gesture) {
+        return touchTimes[gesture];
+    }
+
+    public long getSessionCount(int gesture) {
+        return sessions.get(gesture);
+    }
+
+    public long getFrameCount(int gesture) {
+        return frames.get(gesture);
+    }
+
+    public long getDroppedFrames(int gesture) {
+        return droppedFrames.get(gesture);
+    }
+
+    public long getCommitCount(int gesture) {
+        return commits.get(gesture);
+    }
+
+    /**
+     * @param gesture the new gesture, or {@link #GESTURE_NONE} if the view
+     *                is idle
+     */
+    void onGesture(int gesture) {
+        if (session != null && session.gesture == gesture) {
+            return;
+        }
+        if (session != null) {
+            endSession(System.nanoTime());
+        }
+        if (gesture > GESTURE_NONE && gesture < GESTURE_COUNT) {
+            session = new Session(gesture, System.nanoTime());
+        }
+    }
+
+    /**
+     * the view requested a frame, only the first request before a draw counts
+     */
+    void onFrameRequested() {
+        if (session != null && session.requestTime == 0) {
+            session.requestTime = System.nanoTime();
+        }
+    }
+
+    void onDraw(long startTime, long duration) {
+        if (session == null) {
+            return;
+        }
+        int gesture = session.gesture;
+        long requestTime = session.requestTime;
+        if (requestTime > 0) {
+            // a frame requested within a frame of the last one continues the
+            // animation, otherwise it is measured from the request
+            long lastFrameTime = session.lastFrameTime;
+            long from = lastFrameTime > 0 && requestTime - lastFrameTime <= frameInterval
+                    ? lastFrameTime : requestTime;
+            long interval = startTime - from;
+            frameIntervals[gesture].add(interval);
+            session.worstFrameInterval = Math.max(session.worstFrameInterval, interval);
+            // the frames missed between this frame and the last one
+            long missed = (interval + frameInterval / 2) / frameInterval - 1;
+            if (missed > 0) {
+                session.droppedFrames += missed;
+            }
+            session.requestTime = 0;
+        }
+        session.lastFrameTime = startTime;
+        session.frames++;
+        session.drawTime += duration;
+        drawTimes[gesture].add(duration);
+    }
+
+    void onTouch(long duration) {
+        if (session == null) {
+            return;
+        }
+        session.touchTime += duration;
+        touchTimes[session.gesture].add(duration);
+    }
+
+    void onCommit() {
+        if (session != null) {
+            session.commits++;
+        }
+    }
+
+    private void endSession(long endTime) {
+        Session ended = session;
+        session = null;
+        ended.duration = endTime - ended.startTime;
+        int gesture = ended.gesture;
+        sessions.incrementAndGet(gesture);
+        frames.addAndGet(gesture, ended.frames);
+        droppedFrames.addAndGet(gesture, ended.droppedFrames);
+        commits.addAndGet(gesture, ended.commits);
+        if (listener != null) {
+            listener.onSession(ended);
+        }
+    }
+
+    @TargetApi(VERSION_CODES.JELLY_BEAN_MR2)
+    static void beginSection(String name) {
+        if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    @TargetApi(VERSION_CODES.JELLY_BEAN_MR2)
+    static void endSection() {
+        if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * the metrics of one gesture, the times are in nanoseconds
+     */
+    public static class Session {
+
+        private int gesture;
+
+        private long startTime;
+
+        private long duration;
+
+        private long lastFrameTime;
+
+        private long requestTime;
+
+        private int frames;
+
+        private int droppedFrames;
+
+        private long worstFrameInterval;
+
+        private long drawTime;
+
+        private long touchTime;
+
+        private int commits;
+
+        Session(int gesture, long startTime) {
+            this.gesture = gesture;
+            this.startTime = startTime;
+        }
+
+        public int getGesture() {
+            return gesture;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+
+        public int getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        public long getWorstFrameInterval() {
+            return worstFrameInterval;
+        }
+
+        public long getDrawTime() {
+            return drawTime;
+        }
+
+        public long getTouchTime() {
+            return touchTime;
+        }
+
+        public int getCommits() {
+            return commits;
+        }
+
+        @Override
+        public String toString() {
+            return "Session gesture " + gesture + " duration " + duration + " frames " + frames
+                    + " dropped " + droppedFrames + " worst " + worstFrameInterval + " draw "
+                    + drawTime + " touch " + touchTime + " commits " + commits;
+        }
+    }
+
+    /**
+     * a lock free histogram of positive values in power of two buckets
+     */
+    public static class Histogram {
+
+        private static final int BUCKET_COUNT = 64;
+
+        private AtomicLongArray buckets;
+
+        private AtomicLong count;
+
+        private AtomicLong sum;
+
+        private AtomicLong max;
+
+        public Histogram() {
+            this.buckets = new AtomicLongArray(BUCKET_COUNT);
+            this.count = new AtomicLong();
+            this.sum = new AtomicLong();
+            this.max = new AtomicLong();
+        }
+
+        public void add(long value) {
+            if (value < 0) {
+                return;
+            }
+            buckets.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        private static int bucketOf(long value) {
+            return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long total = count.get();
+            return total == 0 ? 0 : sum.get() / total;
+        }
+
+        /**
+         * the upper bound of the bucket holding the percentile, it is not
+         * larger than the max value
+         *
+         * @param percent 0 to 100
+         */
+        public long getPercentile(float percent) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percent / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    long bound = i == 0 ? 0 : (1L << i) - 1;
+                    return Math.min(bound, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.view.MotionEvent;
+import android.view.View;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * a recorded stream of touch events, such as a pinch, a fling, a double tap
+ * or a crop drag. it records the events reaching a view as its touch listener
+ * with the samples the touch panel batched in them, and is saved in a compact
+ * binary format to be replayed in the tests of the view
+ *
+ * <pre>
+ * int magic, byte version, int event count, then for each event:
+ * int action, byte pointer count, byte sample count, the byte id of each
+ * pointer, then for each sample from the oldest to the current one:
+ * int time from the first event in ms, float x and float y of each pointer
+ * </pre>
+ *
+ * version 1 records without the samples are read as events of one sample
+ */
+public class GestureRecord implements View.OnTouchListener {
+
+    private static final int MAGIC = 0x50564752;
+
+    private static final int VERSION = 2;
+
+    private static final int VERSION_NO_HISTORY = 1;
+
+    /**
+     * the samples of an event over this are dropped from the oldest
+     */
+    private static final int MAX_SAMPLES = 255;
+
+    private static final int INITIAL_EVENTS = 64;
+
+    private int eventCount;
+
+    private int[] actions;
+
+    /**
+     * offset of the first pointer of each event in the pointer ids
+     */
+    private int[] pointerOffsets;
+
+    /**
+     * offset of the first sample of each event in the sample times
+     */
+    private int[] sampleOffsets;
+
+    private int pointerCount;
+
+    private int[] pointerIds;
+
+    private int sampleCount;
+
+    private long[] sampleTimes;
+
+    /**
+     * offset of the coords of each sample in the coords
+     */
+    private int[] coordOffsets;
+
+    private int coordCount;
+
+    private float[] xs;
+
+    private float[] ys;
+
+    private long startTime;
+
+    public GestureRecord() {
+        this.actions = new int[INITIAL_EVENTS];
+        this.pointerOffsets = new int[INITIAL_EVENTS + 1];
+        this.sampleOffsets = new int[INITIAL_EVENTS + 1];
+        this.pointerIds = new int[INITIAL_EVENTS];
+        this.sampleTimes = new long[INITIAL_EVENTS];
+        this.coordOffsets = new int[INITIAL_EVENTS];
+        this.xs = new float[INITIAL_EVENTS];
+        this.ys = new float[INITIAL_EVENTS];
+    }
+
+    /**
+     * record the events without consuming them, set it by
+     * {@link View#setOnTouchListener}
+     */
+    @Override
+    public boolean onTouch(View view, MotionEvent event) {
+        record(event);
+        return false;
+    }
+
+    /**
+     * append the event with its historical samples, nothing is allocated
+     * once the arrays grow to the size of the gesture
+     */
+    public void record(MotionEvent event) {
+        if (eventCount == 0) {
+            startTime = event.getEventTime();
+        }
+        int count = event.getPointerCount();
+        int historySize = event.getHistorySize();
+        int first = Math.max(0, historySize + 1 - MAX_SAMPLES);
+        beginEvent(event.getAction(), count);
+        for (int i = 0; i < count; i++) {
+            pointerIds[pointerCount++] = event.getPointerId(i);
+        }
+        for (int h = first; h < historySize; h++) {
+            beginSample(event.getHistoricalEventTime(h) - startTime, count);
+            for (int i = 0; i < count; i++) {
+                xs[coordCount] = event.getHistoricalX(i, h);
+                ys[coordCount] = event.getHistoricalY(i, h);
+                coordCount++;
+            }
+        }
+        beginSample(event.getEventTime() - startTime, count);
+        for (int i = 0; i < count; i++) {
+            xs[coordCount] = event.getX(i);
+            ys[coordCount] = event.getY(i);
+            coordCount++;
+        }
+        endEvent();
+    }
+
+    /**
+     * append an event of one sample
+     */
+    public void add(long time, int action, int[] ids, float[] xs, float[] ys) {
+        beginEvent(action, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            pointerIds[pointerCount++] = ids[i];
+        }
+        addSample(time, xs, ys);
+        endEvent();
+    }
+
+    /**
+     * append a newer sample to the last event, the current sample becomes
+     * its history as {@link MotionEvent#addBatch} does
+     */
+    public void addBatch(long time, float[] xs, float[] ys) {
+        if (eventCount == 0) {
+            throw new IllegalStateException("no event to add a sample to");
+        }
+        if (getHistorySize(eventCount - 1) + 1 >= MAX_SAMPLES) {
+            throw new IllegalStateException("too many samples in an event");
+        }
+        eventCount--;
+        addSample(time, xs, ys);
+        endEvent();
+    }
+
+    private void addSample(long time, float[] xs, float[] ys) {
+        int count = pointerCount - pointerOffsets[eventCount];
+        beginSample(time, count);
+        for (int i = 0; i < count; i++) {
+            this.xs[coordCount] = xs[i];
+            this.ys[coordCount] = ys[i];
+            coordCount++;
+        }
+    }
+
+    private void beginEvent(int action, int pointers) {
+        ensureEvents(eventCount + 1);
+        ensurePointers(pointerCount + pointers);
+        actions[eventCount] = action;
+        pointerOffsets[eventCount] = pointerCount;
+        sampleOffsets[eventCount] = sampleCount;
+    }
+
+    private void beginSample(long time, int pointers) {
+        ensureSamples(sampleCount + 1);
+        ensureCoords(coordCount + pointers);
+        sampleTimes[sampleCount] = time;
+        coordOffsets[sampleCount] = coordCount;
+        sampleCount++;
+    }
+
+    private void endEvent() {
+        eventCount++;
+        pointerOffsets[eventCount] = pointerCount;
+        sampleOffsets[eventCount] = sampleCount;
+    }
+
+    public void clear() {
+        eventCount = 0;
+        pointerCount = 0;
+        sampleCount = 0;
+        coordCount = 0;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * the time of the current sample of the event
+     */
+    public long getTime(int event) {
+        return sampleTimes[sampleOffsets[event + 1] - 1];
+    }
+
+    public int getAction(int event) {
+        return actions[event];
+    }
+
+    public int getPointerCount(int event) {
+        return pointerOffsets[event + 1] - pointerOffsets[event];
+    }
+
+    public int getPointerId(int event, int pointer) {
+        return pointerIds[pointerOffsets[event] + pointer];
+    }
+
+    public float getX(int event, int pointer) {
+        return getHistoricalX(event, pointer, getHistorySize(event));
+    }
+
+    public float getY(int event, int pointer) {
+        return getHistoricalY(event, pointer, getHistorySize(event));
+    }
+
+    /**
+     * the samples batched in the event before the current one
+     */
+    public int getHistorySize(int event) {
+        return sampleOffsets[event + 1] - sampleOffsets[event] - 1;
+    }
+
+    public long getHistoricalTime(int event, int pos) {
+        return sampleTimes[sampleOffsets[event] + pos];
+    }
+
+    public float getHistoricalX(int event, int pointer, int pos) {
+        return xs[coordOffsets[sampleOffsets[event] + pos] + pointer];
+    }
+
+    public float getHistoricalY(int event, int pointer, int pos) {
+        return ys[coordOffsets[sampleOffsets[event] + pos] + pointer];
+    }
+
+    private void ensureEvents(int size) {
+        if (size <= actions.length) {
+            return;
+        }
+        int length = Math.max(size, actions.length * 2);
+        actions = Arrays.copyOf(actions, length);
+        pointerOffsets = Arrays.copyOf(pointerOffsets, length + 1);
+        sampleOffsets = Arrays.copyOf(sampleOffsets, length + 1);
+    }
+
+    private void ensurePointers(int size) {
+        if (size <= pointerIds.length) {
+            return;
+        }
+        pointerIds = Arrays.copyOf(pointerIds, Math.max(size, pointerIds.length * 2));
+    }
+
+    private void ensureSamples(int size) {
+        if (size <= sampleTimes.length) {
+            return;
+        }
+        int length = Math.max(size, sampleTimes.length * 2);
+        sampleTimes = Arrays.copyOf(sampleTimes, length);
+        coordOffsets = Arrays.copyOf(coordOffsets, length);
+    }
+
+    private void ensureCoords(int size) {
+        if (size <= xs.length) {
+            return;
+        }
+        int length = Math.max(size, xs.length * 2);
+        xs = Arrays.copyOf(xs, length);
+        ys = Arrays.copyOf(ys, length);
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream output = new DataOutputStream(stream);
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        output.writeInt(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            int count = getPointerCount(i);
+            int samples = getHistorySize(i) + 1;
+            output.writeInt(actions[i]);
+            output.writeByte(count);
+            output.writeByte(samples);
+            for (int j = 0; j < count; j++) {
+                output.writeByte(getPointerId(i, j));
+            }
+            for (int h = 0; h < samples; h++) {
+                output.writeInt((int) getHistoricalTime(i, h));
+                for (int j = 0; j < count; j++) {
+                    output.writeFloat(getHistoricalX(i, j, h));
+                    output.writeFloat(getHistoricalY(i, j, h));
+                }
+            }
+        }
+        output.flush();
+    }
+
+    public static GestureRecord readFrom(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(stream);
+        if (input.readInt() != MAGIC) {
+            throw new IOException("not a gesture record");
+        }
+        int version = input.readByte();
+        if (version != VERSION && version != VERSION_NO_HISTORY) {
+            throw new IOException("unsupported gesture record version " + version);
+        }
+
+        GestureRecord record = new GestureRecord();
+        int events = input.readInt();
+        int[] ids = new int[0];
+        float[] xs = new float[0];
+        float[] ys = new float[0];
+        for (int i = 0; i < events; i++) {
+            long time = 0;
+            if (version == VERSION_NO_HISTORY) {
+                time = input.readInt();
+            }
+            int action = input.readInt();
+            int count = input.readUnsignedByte();
+            int samples = version == VERSION_NO_HISTORY ? 1 : input.readUnsignedByte();
+            if (ids.length < count) {
+                ids = new int[count];
+                xs = new float[count];
+                ys = new float[count];
+            }
+            if (version == VERSION_NO_HISTORY) {
+                for (int j = 0; j < count; j++) {
+                    ids[j] = input.readUnsignedByte();
+                    xs[j] = input.readFloat();
+                    ys[j] = input.readFloat();
+                }
+                record.add(time, action, Arrays.copyOf(ids, count), xs, ys);
+                continue;
+            }
+
+            for (int j = 0; j < count; j++) {
+                ids[j] = input.readUnsignedByte();
+            }
+            for (int h = 0; h < samples; h++) {
+                time = input.readInt();
+                for (int j = 0; j < count; j++) {
+                    xs[j] = input.readFloat();
+                    ys[j] = input.readFloat();
+                }
+                if (h == 0) {
+                    record.add(time, action, Arrays.copyOf(ids, count), xs, ys);
+                } else {
+                    record.addBatch(time, xs, ys);
+                }
+            }
+        }
+        return record;
+    }
+}
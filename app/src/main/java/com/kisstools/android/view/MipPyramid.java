@@ -0,0 +1,231 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * successively halved renditions of a bitmap, drawn instead of the bitmap
+ * when it is scaled down so it is not sampled at full resolution. a level is
+ * built in background the first time it is asked for, and the levels are
+ * dropped when the system asks to trim memory. the levels reserve their
+ * bytes in the {@link BitmapCache}, a level is not built if the cache has no
+ * room for it
+ */
+final class MipPyramid {
+
+    public static final String TAG = "MipPyramid";
+
+    /**
+     * no level is smaller than this on either side
+     */
+    private static final int MIN_SIZE = 64;
+
+    private static final int MAX_LEVELS = 6;
+
+    public static interface Callback {
+
+        /**
+         * called on the main thread when a level is built
+         */
+        public void onLevelLoaded();
+    }
+
+    private Bitmap base;
+
+    private BitmapCache cache;
+
+    private Callback callback;
+
+    private Bitmap[] levels;
+
+    /**
+     * the bytes reserved in the cache for each level built or being built
+     */
+    private int[] sizes;
+
+    private boolean building;
+
+    private boolean released;
+
+    private int pressureCount;
+
+    MipPyramid(Bitmap base, BitmapCache cache, Callback callback) {
+        this.base = base;
+        this.cache = cache;
+        this.callback = callback;
+        int count = 1;
+        int width = base.getWidth();
+        int height = base.getHeight();
+        while (count <= MAX_LEVELS && (width >> count) >= MIN_SIZE && (height >> count) >= MIN_SIZE) {
+            count++;
+        }
+        this.levels = new Bitmap[count];
+        this.sizes = new int[count];
+        this.levels[0] = base;
+        this.pressureCount = PixelPolicy.getPressureCount();
+    }
+
+    public Bitmap getBase() {
+        return base;
+    }
+
+    /**
+     * get the finest level not sharper than required, or the nearest finer
+     * level built if it is not built yet. never a level coarser than the
+     * screen, so the levels are only sampled down
+     *
+     * @param scale the screen pixels per pixel of the base
+     */
+    public Bitmap getLevel(float scale) {
+        int count = PixelPolicy.getPressureCount();
+        if (count != pressureCount) {
+            pressureCount = count;
+            trim();
+        }
+
+        int level = 0;
+        while (level + 1 < levels.length && scale * (1 << (level + 1)) <= 1) {
+            level++;
+        }
+        if (level == 0) {
+            return base;
+        }
+
+        int built = level;
+        while (levels[built] == null) {
+            built--;
+        }
+        if (built < level) {
+            build(built, level);
+        }
+        return levels[built];
+    }
+
+    /**
+     * drop the levels except the base, they are built again when asked for
+     */
+    public void trim() {
+        if (PhotoView.DEBUG) {
+            Log.d(TAG, "trim levels");
+        }
+        for (int i = 1; i < levels.length; i++) {
+            levels[i] = null;
+        }
+        unreserve(1, levels.length - 1);
+    }
+
+    public void release() {
+        released = true;
+        trim();
+    }
+
+    /**
+     * halve the level from the finer level step by step, the levels between
+     * them are kept as well
+     */
+    private void build(final int from, final int to) {
+        if (building) {
+            return;
+        }
+        final Bitmap source = levels[from];
+        int bytes = 0;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int pixelBytes = BitmapCache.getByteCount(source) / (width * height);
+        for (int level = from + 1; level <= to; level++) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            sizes[level] = width * height * pixelBytes;
+            bytes += sizes[level];
+        }
+        if (PixelPolicy.isMemoryLow(bytes) || !cache.reserve(bytes)) {
+            if (PhotoView.DEBUG) {
+                Log.d(TAG, "skip level " + to + " for low memory");
+            }
+            for (int level = from + 1; level <= to; level++) {
+                sizes[level] = 0;
+            }
+            return;
+        }
+
+        building = true;
+        final int generation = pressureCount;
+        try {
+            PhotoLoader.EXECUTOR.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Bitmap bitmap = source;
+                    for (int level = from + 1; level <= to; level++) {
+                        try {
+                            bitmap = Bitmap.createScaledBitmap(bitmap,
+                                    Math.max(1, bitmap.getWidth() / 2),
+                                    Math.max(1, bitmap.getHeight() / 2), true);
+                        } catch (OutOfMemoryError e) {
+                            Log.w(TAG, "build level " + level + " out of memory", e);
+                            post(level, to, null, generation);
+                            return;
+                        }
+                        post(level, to, bitmap, generation);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "build level " + to + " rejected", e);
+            building = false;
+            unreserve(from + 1, to);
+        }
+    }
+
+    /**
+     * return the bytes reserved for the levels between the given levels
+     */
+    private void unreserve(int from, int to) {
+        int bytes = 0;
+        for (int level = from; level <= to; level++) {
+            bytes += sizes[level];
+            sizes[level] = 0;
+        }
+        if (bytes > 0) {
+            cache.unreserve(bytes);
+        }
+    }
+
+    /**
+     * @param bitmap     the level built, null if it failed and the build stops
+     * @param generation the pressure count when the build started, the
+     *                   levels built before a trim are dropped
+     */
+    private void post(final int level, final int to, final Bitmap bitmap,
+            final int generation) {
+        PhotoLoader.HANDLER.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (bitmap == null || level == to) {
+                    building = false;
+                }
+                if (released || generation != pressureCount) {
+                    // the reservation is returned by the trim
+                    return;
+                }
+                if (bitmap == null) {
+                    unreserve(level, to);
+                    return;
+                }
+                levels[level] = bitmap;
+                if (PhotoView.DEBUG) {
+                    Log.d(TAG, "level " + level + " width " + bitmap.getWidth()
+                            + " height " + bitmap.getHeight());
+                }
+                callback.onLevelLoaded();
+            }
+        });
+    }
+}
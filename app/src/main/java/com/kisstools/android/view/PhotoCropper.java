@@ -0,0 +1,164 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * crop a region of the photo in background, the region is decoded from
+ * the source at full resolution when the source is available
+ */
+final class PhotoCropper implements Runnable {
+
+    public static final String TAG = "PhotoCropper";
+
+    private Context context;
+
+    private Uri source;
+
+    private Bitmap bitmap;
+
+    private RectF region;
+
+    private float rotation;
+
+    private Bitmap.Config config;
+
+    private PhotoView.CropCallback callback;
+
+    /**
+     * @param source   the source of the photo, null to crop the bitmap only
+     * @param bitmap   the bitmap displayed in the view
+     * @param region   the region to crop, normalized to the photo size
+     * @param rotation the rotation applied to the cropped photo
+     * @param config   the config of the region decoded from the source
+     */
+    PhotoCropper(Context context, Uri source, Bitmap bitmap, RectF region, float rotation,
+            Bitmap.Config config, PhotoView.CropCallback callback) {
+        this.context = context.getApplicationContext();
+        this.source = source;
+        this.bitmap = bitmap;
+        this.region = new RectF(region);
+        this.rotation = rotation;
+        this.config = config;
+        this.callback = callback;
+    }
+
+    public void start() {
+        PhotoLoader.EXECUTOR.execute(this);
+    }
+
+    @Override
+    public void run() {
+        Bitmap cropped = null;
+        try {
+            if (source != null && VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD_MR1) {
+                cropped = cropSource();
+            }
+            if (cropped == null && bitmap != null) {
+                cropped = cropBitmap();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "crop " + source + " failed", e);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "crop out of memory", e);
+        }
+
+        final Bitmap result = cropped;
+        PhotoLoader.HANDLER.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (result == null) {
+                    callback.onCropFailed();
+                } else {
+                    callback.onCropped(result);
+                }
+            }
+        });
+    }
+
+    @TargetApi(VERSION_CODES.GINGERBREAD_MR1)
+    private Bitmap cropSource() throws IOException {
+        InputStream stream = null;
+        BitmapRegionDecoder decoder = null;
+        try {
+            stream = DecodeUtils.openStream(context, source);
+            decoder = BitmapRegionDecoder.newInstance(stream, false);
+            int sourceWidth = decoder.getWidth();
+            int sourceHeight = decoder.getHeight();
+            Rect rect = toRect(region, sourceWidth, sourceHeight);
+            if (rect.isEmpty()) {
+                return null;
+            }
+
+            if (PhotoView.DEBUG) {
+                Log.d(TAG, "cropSource " + rect.toShortString() + " of " + sourceWidth + "x" + sourceHeight);
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = config;
+            Bitmap cropped = decoder.decodeRegion(rect, options);
+            return rotate(cropped);
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            DecodeUtils.closeQuietly(stream);
+        }
+    }
+
+    private Bitmap cropBitmap() {
+        Rect rect = toRect(region, bitmap.getWidth(), bitmap.getHeight());
+        if (rect.isEmpty()) {
+            return null;
+        }
+
+        if (PhotoView.DEBUG) {
+            Log.d(TAG, "cropBitmap " + rect.toShortString());
+        }
+        Matrix matrix = new Matrix();
+        matrix.setRotate(rotation);
+        return Bitmap.createBitmap(bitmap, rect.left, rect.top, rect.width(), rect.height(),
+                matrix, true);
+    }
+
+    private Bitmap rotate(Bitmap cropped) {
+        if (cropped == null || rotation % 360 == 0) {
+            return cropped;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.setRotate(rotation);
+        Bitmap rotated = Bitmap.createBitmap(cropped, 0, 0, cropped.getWidth(),
+                cropped.getHeight(), matrix, true);
+        if (rotated != cropped) {
+            cropped.recycle();
+        }
+        return rotated;
+    }
+
+    private static Rect toRect(RectF region, int width, int height) {
+        Rect rect = new Rect(Math.round(region.left * width), Math.round(region.top * height),
+                Math.round(region.right * width), Math.round(region.bottom * height));
+        if (!rect.intersect(0, 0, width, height)) {
+            rect.setEmpty();
+        }
+        return rect;
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * decode images in background with a sample size matching the required
+ * size, the result is delivered on the main thread
+ */
+final class PhotoLoader {
+
+    public static final String TAG = "PhotoLoader";
+
+    private static final int THREAD_COUNT = 2;
+
+    static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREAD_COUNT);
+
+    static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    public static interface Callback {
+
+        /**
+         * the cached view sized rendition is shown before the decode finishes
+         */
+        public void onPreviewLoaded(Bitmap preview);
+
+        public void onLoaded(Bitmap bitmap);
+
+        public void onLoadFailed();
+    }
+
+    private PhotoLoader() {
+    }
+
+    public static LoadTask load(Context context, Uri uri, int reqWidth, int reqHeight,
+            Callback callback) {
+        return load(context, uri, reqWidth, reqHeight, 0, 0, PhotoView.PIXEL_AUTO, callback);
+    }
+
+    /**
+     * load the image and keep a rendition fitting the view size in
+     * {@link RenditionCache}. the rendition is delivered as the preview, or
+     * as the result if the required size is not larger than the view
+     *
+     * @param pixelPolicy see {@link PhotoView#setPixelPolicy(int)}
+     */
+    public static LoadTask load(Context context, Uri uri, int reqWidth, int reqHeight,
+            int viewWidth, int viewHeight, int pixelPolicy, Callback callback) {
+        LoadTask task = new LoadTask(context, uri, reqWidth, reqHeight, callback);
+        task.viewWidth = viewWidth;
+        task.viewHeight = viewHeight;
+        task.pixelPolicy = pixelPolicy;
+        task.future = EXECUTOR.submit(task);
+        return task;
+    }
+
+    /**
+     * scale the bitmap down to fit the size, the bitmap is returned if it
+     * fits already
+     */
+    static Bitmap createRendition(Bitmap bitmap, int width, int height) {
+        float ratio = Math.min((float) width / bitmap.getWidth(),
+                (float) height / bitmap.getHeight());
+        if (ratio >= 1) {
+            return bitmap;
+        }
+        int dstWidth = Math.max(1, Math.round(bitmap.getWidth() * ratio));
+        int dstHeight = Math.max(1, Math.round(bitmap.getHeight() * ratio));
+        return Bitmap.createScaledBitmap(bitmap, dstWidth, dstHeight, true);
+    }
+
+    public static Bitmap decode(Context context, Uri uri, BitmapFactory.Options options,
+            int reqWidth, int reqHeight, int pixelPolicy) throws IOException {
+        InputStream stream = null;
+        try {
+            stream = DecodeUtils.openStream(context, uri);
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            DecodeUtils.closeQuietly(stream);
+        }
+
+        if (options.outWidth <= 0 || options.outHeight <= 0 || options.mCancel) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = DecodeUtils.calculateSampleSize(options.outWidth,
+                options.outHeight, reqWidth, reqHeight);
+        options.inPreferredConfig = PixelPolicy.chooseConfig(pixelPolicy, options.outMimeType,
+                options.outWidth / options.inSampleSize, options.outHeight / options.inSampleSize);
+        if (PhotoView.DEBUG) {
+            Log.d(TAG, "decode " + uri + " width " + options.outWidth + " height "
+                    + options.outHeight + " sample " + options.inSampleSize + " config "
+                    + options.inPreferredConfig);
+        }
+        try {
+            stream = DecodeUtils.openStream(context, uri);
+            return BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            DecodeUtils.closeQuietly(stream);
+        }
+    }
+
+    public static class LoadTask implements Runnable {
+
+        private Context context;
+
+        private Uri uri;
+
+        private int reqWidth, reqHeight;
+
+        private int viewWidth, viewHeight;
+
+        private int pixelPolicy;
+
+        private Callback callback;
+
+        private BitmapFactory.Options options;
+
+        private Future<?> future;
+
+        private volatile boolean cancelled;
+
+        LoadTask(Context context, Uri uri, int reqWidth, int reqHeight, Callback callback) {
+            this.context = context.getApplicationContext();
+            this.uri = uri;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.callback = callback;
+            this.options = new BitmapFactory.Options();
+        }
+
+        public Uri getUri() {
+            return uri;
+        }
+
+        /**
+         * stop the decoding as soon as possible, the callback will not be
+         * invoked after this call
+         */
+        public void cancel() {
+            if (PhotoView.DEBUG) {
+                Log.d(TAG, "cancel " + uri);
+            }
+            cancelled = true;
+            options.requestCancelDecode();
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+
+            String renditionKey = null;
+            Bitmap rendition = null;
+            if (viewWidth > 0 && viewHeight > 0) {
+                renditionKey = RenditionCache.getKey(context, uri, viewWidth, viewHeight);
+                rendition = RenditionCache.getInstance(context).get(renditionKey);
+                if (rendition != null) {
+                    if (PhotoView.DEBUG) {
+                        Log.d(TAG, "rendition of " + uri + " from disk config "
+                                + rendition.getConfig());
+                    }
+                    // a rendition written under memory pressure may be
+                    // RGB_565, it is only a preview for the quality policy
+                    // and written again from the decode
+                    boolean accepted = PixelPolicy.accepts(pixelPolicy, rendition.getConfig());
+                    if (accepted && reqWidth <= viewWidth && reqHeight <= viewHeight) {
+                        deliver(rendition);
+                        return;
+                    }
+                    deliverPreview(rendition);
+                    if (!accepted) {
+                        rendition = null;
+                    }
+                }
+            }
+
+            Bitmap bitmap = null;
+            GestureMetrics.beginSection("PhotoLoader.decode");
+            try {
+                bitmap = decode(context, uri, options, reqWidth, reqHeight, pixelPolicy);
+                if (bitmap != null && renditionKey != null && rendition == null && !cancelled) {
+                    Bitmap small = createRendition(bitmap, viewWidth, viewHeight);
+                    RenditionCache.getInstance(context).put(renditionKey, small);
+                    if (small != bitmap) {
+                        small.recycle();
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "decode " + uri + " failed", e);
+            } catch (OutOfMemoryError e) {
+                Log.w(TAG, "decode " + uri + " out of memory", e);
+            } finally {
+                GestureMetrics.endSection();
+            }
+            deliver(bitmap);
+        }
+
+        private void deliverPreview(final Bitmap preview) {
+            HANDLER.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!cancelled) {
+                        callback.onPreviewLoaded(preview);
+                    }
+                }
+            });
+        }
+
+        private void deliver(final Bitmap result) {
+            HANDLER.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (result == null) {
+                        callback.onLoadFailed();
+                    } else {
+                        callback.onLoaded(result);
+                    }
+                }
+            });
+        }
+    }
+}
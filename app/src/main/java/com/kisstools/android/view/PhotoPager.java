@@ -0,0 +1,366 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.support.v4.view.PagerAdapter;
+import android.support.v4.view.ViewPager;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a horizontal pager of photos. the photo views are recycled, the fit
+ * resolution previews of the neighbour pages are decoded ahead into the
+ * {@link BitmapCache} and held within the memory budget, only the current
+ * page holds the full resolution
+ */
+public class PhotoPager extends ViewPager {
+
+    public static final String TAG = "PhotoPager";
+
+    private static final int PREFETCH_DISTANCE = 2;
+
+    private static final int DEFAULT_BUDGET_DIVIDER = 8;
+
+    private List<Uri> uris;
+
+    private ArrayList<PhotoView> viewPool;
+
+    private SparseArray<PhotoView> activeViews;
+
+    private HashMap<Uri, PhotoLoader.LoadTask> prefetchTasks;
+
+    /**
+     * the cache entries of the previews held, the least recently used first
+     */
+    private LinkedHashMap<Uri, BitmapCache.Entry> previews;
+
+    private int previewBytes;
+
+    private int memoryBudget;
+
+    /**
+     * trim the previews when the current page shows its full resolution
+     */
+    private Runnable loadedCallback;
+
+    private int currentPosition;
+
+    public PhotoPager(Context context) {
+        this(context, null);
+    }
+
+    public PhotoPager(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        this.uris = new ArrayList<Uri>();
+        this.viewPool = new ArrayList<PhotoView>();
+        this.activeViews = new SparseArray<PhotoView>();
+        this.prefetchTasks = new HashMap<Uri, PhotoLoader.LoadTask>();
+        this.previews = new LinkedHashMap<Uri, BitmapCache.Entry>(16, 0.75f, true);
+        this.currentPosition = -1;
+        this.loadedCallback = new Runnable() {
+
+            @Override
+            public void run() {
+                trimPreviews(getPreviewBudget());
+            }
+        };
+        setMemoryBudget((int) (Runtime.getRuntime().maxMemory() / DEFAULT_BUDGET_DIVIDER));
+        setAdapter(new PhotoAdapter());
+        addOnPageChangeListener(new SimpleOnPageChangeListener() {
+
+            @Override
+            public void onPageSelected(int position) {
+                selectPage(position);
+            }
+        });
+    }
+
+    /**
+     * limit the bytes held by the pager, the full resolution photo of the
+     * current page and the previews of the pages around it
+     */
+    public void setMemoryBudget(int bytes) {
+        memoryBudget = bytes;
+        trimPreviews(getPreviewBudget());
+    }
+
+    public void setPhotos(List<Uri> photos) {
+        cancelPrefetch(-1);
+        trimPreviews(0);
+        uris = new ArrayList<Uri>(photos);
+        currentPosition = -1;
+        getAdapter().notifyDataSetChanged();
+        selectPage(getCurrentItem());
+    }
+
+    /**
+     * the view of the current page, or null
+     */
+    public PhotoView getCurrentPhotoView() {
+        return activeViews.get(getCurrentItem());
+    }
+
+    private void selectPage(int position) {
+        if (position == currentPosition || position < 0 || position >= uris.size()) {
+            return;
+        }
+        if (PhotoView.DEBUG) {
+            Log.d(TAG, "selectPage " + position);
+        }
+
+        int lastPosition = currentPosition;
+        currentPosition = position;
+        PhotoView lastView = activeViews.get(lastPosition);
+        if (lastView != null) {
+            // drop the full resolution of the page moved off screen
+            bindPreview(lastView, lastPosition);
+        }
+        PhotoView view = activeViews.get(position);
+        if (view != null) {
+            bindFull(view, position);
+        }
+        cancelPrefetch(position);
+        prefetchAround(position);
+    }
+
+    /**
+     * release the previews and stop the prefetch while the pager is off the
+     * window, so a closed album does not pin its previews in the cache
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelPrefetch(-1);
+        trimPreviews(0);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (currentPosition >= 0) {
+            prefetchAround(currentPosition);
+        }
+    }
+
+    private void bindFull(PhotoView view, int position) {
+        Uri uri = uris.get(position);
+        view.loadImageURI(uri, getPreview(uri));
+    }
+
+    private void bindPreview(PhotoView view, int position) {
+        Bitmap preview = getPreview(uris.get(position));
+        if (preview != null) {
+            view.setImageBitmap(preview);
+        } else {
+            view.setImageDrawable(null);
+            prefetch(position);
+        }
+    }
+
+    private void prefetchAround(int position) {
+        for (int i = 1; i <= PREFETCH_DISTANCE; i++) {
+            prefetch(position + i);
+            prefetch(position - i);
+        }
+    }
+
+    private void prefetch(final int position) {
+        if (position < 0 || position >= uris.size()) {
+            return;
+        }
+        final Uri uri = uris.get(position);
+        if (getPreview(uri) != null || prefetchTasks.containsKey(uri)) {
+            return;
+        }
+
+        final int reqWidth = getPreviewWidth();
+        final int reqHeight = getPreviewHeight();
+        PhotoLoader.LoadTask task = PhotoLoader.load(getContext(), uri, reqWidth, reqHeight,
+                reqWidth, reqHeight, PhotoView.PIXEL_AUTO, new PhotoLoader.Callback() {
+
+                    @Override
+                    public void onPreviewLoaded(Bitmap preview) {
+                        // the rendition is the result at fit resolution
+                    }
+
+                    @Override
+                    public void onLoaded(Bitmap bitmap) {
+                        prefetchTasks.remove(uri);
+                        String key = BitmapCache.getKey(uri, reqWidth, reqHeight,
+                                bitmap.getConfig());
+                        BitmapCache.Entry entry = BitmapCache.getInstance(getContext())
+                                .put(key, bitmap);
+                        addPreview(uri, entry);
+                        bitmap = entry.getBitmap();
+                        PhotoView view = activeViews.get(position);
+                        if (view != null && position != currentPosition
+                                && view.getDrawable() == null) {
+                            view.setImageBitmap(bitmap);
+                        }
+                    }
+
+                    @Override
+                    public void onLoadFailed() {
+                        prefetchTasks.remove(uri);
+                    }
+                });
+        prefetchTasks.put(uri, task);
+    }
+
+    private int getPreviewWidth() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return getWidth() > 0 ? getWidth() : metrics.widthPixels;
+    }
+
+    private int getPreviewHeight() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return getHeight() > 0 ? getHeight() : metrics.heightPixels;
+    }
+
+    /**
+     * the preview held by the pager, or the one another pager or view left
+     * in the cache, or null
+     */
+    private Bitmap getPreview(Uri uri) {
+        BitmapCache.Entry entry = previews.get(uri);
+        if (entry == null) {
+            entry = BitmapCache.getInstance(getContext()).acquire(uri, getPreviewWidth(),
+                    getPreviewHeight(), PhotoView.PIXEL_AUTO);
+            if (entry == null) {
+                return null;
+            }
+            addPreview(uri, entry);
+        }
+        return entry.getBitmap();
+    }
+
+    private void addPreview(Uri uri, BitmapCache.Entry entry) {
+        BitmapCache.Entry old = previews.put(uri, entry);
+        if (old != null) {
+            releasePreview(old);
+        }
+        previewBytes += BitmapCache.getByteCount(entry.getBitmap());
+        trimPreviews(getPreviewBudget());
+    }
+
+    private void releasePreview(BitmapCache.Entry entry) {
+        previewBytes -= BitmapCache.getByteCount(entry.getBitmap());
+        BitmapCache.getInstance(getContext()).release(entry);
+    }
+
+    /**
+     * the bytes of the budget left by the full resolution of the current page
+     */
+    private int getPreviewBudget() {
+        PhotoView view = activeViews.get(currentPosition);
+        int fullBytes = view != null ? view.getLoadedByteCount() : 0;
+        return Math.max(0, memoryBudget - fullBytes);
+    }
+
+    /**
+     * release the least recently used previews until the bytes held are not
+     * larger than the given bytes, the released ones stay in the cache until
+     * it evicts them
+     */
+    private void trimPreviews(int bytes) {
+        Iterator<BitmapCache.Entry> iterator = previews.values().iterator();
+        while (previewBytes > bytes && iterator.hasNext()) {
+            BitmapCache.Entry entry = iterator.next();
+            iterator.remove();
+            releasePreview(entry);
+        }
+    }
+
+    /**
+     * cancel the prefetch of the pages out of the prefetch range of the
+     * position, or all of them if the position is negative
+     */
+    private void cancelPrefetch(int position) {
+        Iterator<Map.Entry<Uri, PhotoLoader.LoadTask>> iterator = prefetchTasks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Uri, PhotoLoader.LoadTask> entry = iterator.next();
+            int index = position < 0 ? -1 : indexOf(entry.getKey(), position);
+            if (index < 0) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    private int indexOf(Uri uri, int position) {
+        int start = Math.max(0, position - PREFETCH_DISTANCE);
+        int end = Math.min(uris.size() - 1, position + PREFETCH_DISTANCE);
+        for (int i = start; i <= end; i++) {
+            if (uri.equals(uris.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private class PhotoAdapter extends PagerAdapter {
+
+        @Override
+        public int getCount() {
+            return uris.size();
+        }
+
+        @Override
+        public boolean isViewFromObject(View view, Object object) {
+            return view == object;
+        }
+
+        @Override
+        public Object instantiateItem(ViewGroup container, int position) {
+            PhotoView view;
+            if (viewPool.isEmpty()) {
+                view = new PhotoView(getContext());
+                view.setLoadedCallback(loadedCallback);
+            } else {
+                view = viewPool.remove(viewPool.size() - 1);
+            }
+            container.addView(view, LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
+            activeViews.put(position, view);
+            if (position == currentPosition) {
+                bindFull(view, position);
+            } else {
+                bindPreview(view, position);
+            }
+            return view;
+        }
+
+        @Override
+        public void destroyItem(ViewGroup container, int position, Object object) {
+            PhotoView view = (PhotoView) object;
+            container.removeView(view);
+            if (activeViews.get(position) == view) {
+                activeViews.remove(position);
+            }
+            // the bitmap may be a preview held by the pager, drop it only
+            view.setImageDrawable(null);
+            view.setEnableCrop(false);
+            viewPool.add(view);
+        }
+
+        @Override
+        public int getItemPosition(Object object) {
+            return POSITION_NONE;
+        }
+    }
+}
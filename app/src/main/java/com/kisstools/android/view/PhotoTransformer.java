@@ -0,0 +1,394 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * render the photo rotated, cropped and scaled to a size in background.
+ * the transforms requested while a job is waiting are merged into it, and a
+ * running job is cancelled by a newer request, so rapid rotate taps end up
+ * in one job with the net rotation. large sources are decoded in bands to
+ * report the progress and to stop early when cancelled
+ */
+public class PhotoTransformer {
+
+    public static final String TAG = "PhotoTransformer";
+
+    /**
+     * source rows decoded in one band at sample size 1
+     */
+    private static final int BAND_SIZE = 512;
+
+    private static final int MAX_THREADS = 2;
+
+    private static final int MAX_QUEUED = 16;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS,
+            MAX_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED));
+
+    static {
+        // the pool grows past the core size only when the queue is full, so
+        // all the threads are core threads and they time out when idle
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    public static interface Callback {
+
+        /**
+         * @param progress 0 to 1
+         */
+        public void onProgress(float progress);
+
+        public void onTransformed(Bitmap bitmap);
+
+        public void onTransformFailed();
+    }
+
+    private Context context;
+
+    private Uri source;
+
+    private Bitmap bitmap;
+
+    private Bitmap.Config config;
+
+    private Callback callback;
+
+    private float rotation;
+
+    private RectF region;
+
+    private int width, height;
+
+    private Job pendingJob;
+
+    private Job runningJob;
+
+    private int generation;
+
+    /**
+     * nothing is rendered until {@link #start()} or a transform is requested
+     *
+     * @param source   the source of the photo, null to transform the bitmap
+     * @param bitmap   the bitmap displayed, used if the source is not available
+     * @param region   the initial crop normalized to the size of the photo
+     * @param rotation the initial rotation
+     */
+    PhotoTransformer(Context context, Uri source, Bitmap bitmap, Bitmap.Config config,
+            RectF region, float rotation, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.source = source;
+        this.bitmap = bitmap;
+        this.config = config;
+        this.callback = callback;
+        this.region = new RectF(region);
+        this.rotation = rotation % 360;
+    }
+
+    /**
+     * render the current transforms
+     */
+    public void start() {
+        schedule();
+    }
+
+    /**
+     * add the rotation to the net rotation of the output
+     */
+    public void rotate(float degrees) {
+        synchronized (this) {
+            rotation = (rotation + degrees) % 360;
+        }
+        schedule();
+    }
+
+    /**
+     * @param region normalized to the size of the unrotated photo
+     */
+    public void crop(RectF region) {
+        synchronized (this) {
+            this.region.set(region);
+        }
+        schedule();
+    }
+
+    /**
+     * scale the output to the size, a size not positive keeps the size of
+     * the cropped source
+     */
+    public void scaleTo(int width, int height) {
+        synchronized (this) {
+            this.width = width;
+            this.height = height;
+        }
+        schedule();
+    }
+
+    /**
+     * cancel the jobs, the callback is not invoked after this call until the
+     * next request
+     */
+    public synchronized void cancel() {
+        generation++;
+        if (pendingJob != null) {
+            EXECUTOR.remove(pendingJob);
+            pendingJob = null;
+        }
+        if (runningJob != null) {
+            runningJob.cancelled = true;
+            runningJob = null;
+        }
+    }
+
+    private synchronized void schedule() {
+        if (pendingJob != null) {
+            // the waiting job reads the latest transforms when it starts
+            return;
+        }
+        if (runningJob != null) {
+            runningJob.cancelled = true;
+            runningJob = null;
+        }
+
+        generation++;
+        Job job = new Job(generation);
+        pendingJob = job;
+        try {
+            EXECUTOR.execute(job);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "too many transforms", e);
+            pendingJob = null;
+            post(job, null, true);
+        }
+    }
+
+    private synchronized boolean begin(Job job) {
+        if (job != pendingJob || job.generation != generation) {
+            return false;
+        }
+        pendingJob = null;
+        runningJob = job;
+        job.rotation = rotation;
+        job.region = new RectF(region);
+        job.width = width;
+        job.height = height;
+        return true;
+    }
+
+    private void post(final Job job, final Bitmap result, final boolean done) {
+        PhotoLoader.HANDLER.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (job.cancelled || job.generation != generation) {
+                    if (result != null) {
+                        result.recycle();
+                    }
+                    return;
+                }
+                if (!done) {
+                    callback.onProgress(job.progress);
+                    return;
+                }
+                synchronized (PhotoTransformer.this) {
+                    if (runningJob == job) {
+                        runningJob = null;
+                    }
+                }
+                if (result == null) {
+                    callback.onTransformFailed();
+                } else {
+                    callback.onTransformed(result);
+                }
+            }
+        });
+    }
+
+    private class Job implements Runnable {
+
+        private int generation;
+
+        private volatile boolean cancelled;
+
+        private volatile float progress;
+
+        private float rotation;
+
+        private RectF region;
+
+        private int width, height;
+
+        Job(int generation) {
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            if (!begin(this)) {
+                return;
+            }
+
+            Bitmap result = null;
+            try {
+                if (source != null && VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD_MR1) {
+                    result = transformSource();
+                }
+                if (result == null && bitmap != null && !cancelled) {
+                    result = transformBitmap();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "transform " + source + " failed", e);
+            } catch (OutOfMemoryError e) {
+                Log.w(TAG, "transform out of memory", e);
+            }
+            if (cancelled && result != null) {
+                result.recycle();
+                return;
+            }
+            post(this, result, true);
+        }
+
+        @TargetApi(VERSION_CODES.GINGERBREAD_MR1)
+        private Bitmap transformSource() throws IOException {
+            InputStream stream = null;
+            BitmapRegionDecoder decoder = null;
+            try {
+                stream = DecodeUtils.openStream(context, source);
+                decoder = BitmapRegionDecoder.newInstance(stream, false);
+                Rect rect = toRect(decoder.getWidth(), decoder.getHeight());
+                if (rect.isEmpty()) {
+                    return null;
+                }
+
+                Bitmap output = createOutput(rect);
+                int sampleSize = getSampleSize(rect, output);
+                Matrix matrix = getMatrix(rect, output);
+                if (PhotoView.DEBUG) {
+                    Log.d(TAG, "transformSource " + rect.toShortString() + " sample " + sampleSize
+                            + " rotation " + rotation);
+                }
+
+                Canvas canvas = new Canvas(output);
+                Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                options.inPreferredConfig = config;
+                Matrix bandMatrix = new Matrix();
+                Rect band = new Rect();
+                int bandSize = BAND_SIZE * sampleSize;
+                for (int top = rect.top; top < rect.bottom; top += bandSize) {
+                    if (cancelled) {
+                        output.recycle();
+                        return null;
+                    }
+                    band.set(rect.left, top, rect.right, Math.min(rect.bottom, top + bandSize));
+                    Bitmap decoded = decoder.decodeRegion(band, options);
+                    if (decoded == null) {
+                        output.recycle();
+                        return null;
+                    }
+                    // the pixels of the band to the source coordinates
+                    bandMatrix.set(matrix);
+                    bandMatrix.preTranslate(band.left, band.top);
+                    bandMatrix.preScale((float) band.width() / decoded.getWidth(),
+                            (float) band.height() / decoded.getHeight());
+                    canvas.drawBitmap(decoded, bandMatrix, paint);
+                    decoded.recycle();
+
+                    progress = (float) (band.bottom - rect.top) / rect.height();
+                    post(this, null, false);
+                }
+                return output;
+            } finally {
+                if (decoder != null) {
+                    decoder.recycle();
+                }
+                DecodeUtils.closeQuietly(stream);
+            }
+        }
+
+        private Bitmap transformBitmap() {
+            Rect rect = toRect(bitmap.getWidth(), bitmap.getHeight());
+            if (rect.isEmpty()) {
+                return null;
+            }
+
+            Bitmap output = createOutput(rect);
+            Canvas canvas = new Canvas(output);
+            canvas.drawBitmap(bitmap, getMatrix(rect, output), new Paint(Paint.FILTER_BITMAP_FLAG));
+            progress = 1;
+            post(this, null, false);
+            return output;
+        }
+
+        private Rect toRect(int sourceWidth, int sourceHeight) {
+            Rect rect = new Rect(Math.round(region.left * sourceWidth),
+                    Math.round(region.top * sourceHeight),
+                    Math.round(region.right * sourceWidth),
+                    Math.round(region.bottom * sourceHeight));
+            if (!rect.intersect(0, 0, sourceWidth, sourceHeight)) {
+                rect.setEmpty();
+            }
+            return rect;
+        }
+
+        private Bitmap createOutput(Rect rect) {
+            int outWidth = width;
+            int outHeight = height;
+            if (outWidth <= 0 || outHeight <= 0) {
+                boolean swap = rotation % 180 != 0;
+                outWidth = swap ? rect.height() : rect.width();
+                outHeight = swap ? rect.width() : rect.height();
+            }
+            Bitmap.Config outConfig = rotation % 90 == 0 ? config : Bitmap.Config.ARGB_8888;
+            return Bitmap.createBitmap(outWidth, outHeight, outConfig);
+        }
+
+        private int getSampleSize(Rect rect, Bitmap output) {
+            boolean swap = rotation % 180 != 0;
+            int reqWidth = swap ? output.getHeight() : output.getWidth();
+            int reqHeight = swap ? output.getWidth() : output.getHeight();
+            return DecodeUtils.calculateSampleSize(rect.width(), rect.height(), reqWidth, reqHeight);
+        }
+
+        /**
+         * map the source coordinates of the rect to the output
+         */
+        private Matrix getMatrix(Rect rect, Bitmap output) {
+            Matrix matrix = new Matrix();
+            matrix.setTranslate(-rect.left, -rect.top);
+            matrix.postRotate(rotation);
+            RectF bounds = new RectF(0, 0, rect.width(), rect.height());
+            Matrix rotate = new Matrix();
+            rotate.setRotate(rotation);
+            rotate.mapRect(bounds);
+            matrix.postTranslate(-bounds.left, -bounds.top);
+            matrix.postScale(output.getWidth() / bounds.width(),
+                    output.getHeight() / bounds.height());
+            return matrix;
+        }
+    }
+}
@@ -5,9 +5,11 @@
 package com.kisstools.android.view;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
@@ -15,79 +17,187 @@ import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Region;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
-import android.view.GestureDetector;
+import android.view.Choreographer;
 import android.view.MotionEvent;
-import android.view.ScaleGestureDetector;
-import android.view.ScaleGestureDetector.SimpleOnScaleGestureListener;
+import android.view.ViewConfiguration;
 import android.view.animation.Interpolator;
 import android.view.animation.LinearInterpolator;
 import android.widget.ImageView;
 import android.widget.OverScroller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.kisstools.android.viewport.CropGrid;
+import com.kisstools.android.viewport.Viewport;
+
 public class PhotoView extends ImageView {
 
     public static final String TAG = "PhotoView";
 
+    /**
+     * debug logs are compiled out unless this is enabled
+     */
+    static final boolean DEBUG = false;
+
+    public static final int EVENT_TOUCH = 1;
+
+    public static final int EVENT_DRAW = 2;
+
+    public static final int EVENT_MATRIX = 3;
+
+    public static final int EVENT_STATE = 4;
+
+    public static final int EVENT_TRANSLATE = 5;
+
+    public static final int EVENT_SCALE = 6;
+
+    public static final int EVENT_FLING = 7;
+
+    public static final int EVENT_CROP = 8;
+
+    /**
+     * decode opaque photos as RGB_565 when the memory is low
+     */
+    public static final int PIXEL_AUTO = 0;
+
+    /**
+     * always decode as ARGB_8888
+     */
+    public static final int PIXEL_QUALITY = 1;
+
+    /**
+     * always decode opaque photos as RGB_565
+     */
+    public static final int PIXEL_MEMORY = 2;
+
     private static final boolean DEFAULT_FIT_SPACE = true;
 
     private static enum State {
-        NONE, DRAG, SCALE, FLING, TRANSLATE
+        NONE(GestureMetrics.GESTURE_NONE),
+        DRAG(GestureMetrics.GESTURE_DRAG),
+        SCALE(GestureMetrics.GESTURE_SCALE),
+        FLING(GestureMetrics.GESTURE_FLING),
+        TRANSLATE(GestureMetrics.GESTURE_TRANSLATE);
+
+        /**
+         * the gesture of the metrics and the diagnostics events
+         */
+        private final int gesture;
+
+        State(int gesture) {
+            this.gesture = gesture;
+        }
     }
 
     ;
 
-    public static interface SimpleDragListener {
+    /**
+     * receive the internal events of the view, see
+     * {@link PhotoView#setDiagnosticsListener} for the arguments. it is called
+     * on the hot paths of touch and draw so the implementation should be cheap
+     */
+    public static interface DiagnosticsListener {
 
-        public void onDragBegin();
+        public void onEvent(int event, float arg0, float arg1);
+    }
 
-        public void onDrag(float deltaX, float deltaY);
+    public static interface CropCallback {
 
-        public void onDragEnd();
+        public void onCropped(Bitmap bitmap);
+
+        public void onCropFailed();
     }
 
-    private static final float MIN_FACTOR = 0.6f;
+    public static interface BatchCropCallback {
 
-    private static final float FIT_FACTOR = 1.0f;
+        /**
+         * @param bitmaps the outputs in the order of the requests, null for
+         *                the failed ones
+         */
+        public void onCropped(Bitmap[] bitmaps);
+    }
 
-    private static final float ZOOM_FACTOR = 2.0f;
+    /**
+     * a region normalized to the size of the unrotated photo, and the size
+     * of the output after the rotation of the view is applied
+     */
+    public static class CropRequest {
 
-    private static final float MAX_FACTOR = 3.0f;
+        private RectF region;
 
-    private DragDetector dragDetector;
+        private int width;
 
-    private ScaleGestureDetector scaleDetector;
+        private int height;
 
-    private GestureDetector gestureDetector;
+        /**
+         * @param region the region normalized to the photo size
+         * @param width  the width of the output, positive
+         * @param height the height of the output, positive
+         */
+        public CropRequest(RectF region, int width, int height) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("invalid output size " + width + "x" + height);
+            }
+            this.region = new RectF(region);
+            this.width = width;
+            this.height = height;
+        }
 
-    private GridDetector gridDetector;
+        public RectF getRegion() {
+            return region;
+        }
 
-    private Matrix matrix;
+        public int getWidth() {
+            return width;
+        }
 
-    private float[] matrixValues;
+        public int getHeight() {
+            return height;
+        }
+    }
 
-    private State state;
+    public static interface SimpleDragListener {
 
-    private float scaleFactor;
+        public void onDragBegin();
 
-    private float minFactor;
+        public void onDrag(float deltaX, float deltaY);
+
+        public void onDragEnd();
+    }
+
+    private static final long NANOS_PER_MS = 1000000;
+
+    private GestureEngine gestureEngine;
+
+    private GridDetector gridDetector;
 
-    private float fitScale;
+    private Matrix matrix;
+
+    private float photoRotation;
 
-    private float normalFactor;
+    private Matrix rotateMatrix;
+
+    private State state;
 
-    private float zoomFactor;
+    private float scaleFactor;
 
-    private float maxFactor;
+    private Viewport viewport;
 
     private int drawableWidth;
 
@@ -103,7 +213,9 @@ public class PhotoView extends ImageView {
 
     private boolean fitSpace;
 
-    private FlingRunnable flingRunnable;
+    private PhotoAnimator animator;
+
+    private float[] focusValues;
 
     private boolean enableScale;
 
@@ -115,7 +227,50 @@ public class PhotoView extends ImageView {
 
     private OnClickListener onClickListener;
 
-    private boolean canScale;
+    private boolean matrixDirty;
+
+    private boolean inputBatch;
+
+    private TileDecoder tileDecoder;
+
+    private boolean tilesReady;
+
+    private Matrix inverseMatrix;
+
+    private RectF visibleRect;
+
+    private Rect drawSrc;
+
+    private RectF drawDst;
+
+    private MipPyramid mipPyramid;
+
+    private PhotoLoader.LoadTask loadTask;
+
+    private BitmapCache.Entry cacheEntry;
+
+    private float loadFactor;
+
+    private Runnable loadedCallback;
+
+    /**
+     * the key of the cache entry released while detached from the window
+     */
+    private String detachedKey;
+
+    private boolean detachedLoad;
+
+    private boolean detachedTiles;
+
+    private int pixelPolicy;
+
+    private Uri sourceUri;
+
+    private DiagnosticsListener diagnostics;
+
+    private SavedState pendingState;
+
+    private GestureMetrics metrics;
 
     public PhotoView(Context context) {
         this(context, null);
@@ -133,27 +288,73 @@ public class PhotoView extends ImageView {
         this.matrix = new Matrix();
         this.state = State.NONE;
         this.photoRect = new RectF();
-        this.matrixValues = new float[9];
+        this.rotateMatrix = new Matrix();
+        this.inverseMatrix = new Matrix();
+        this.visibleRect = new RectF();
+        this.drawSrc = new Rect();
+        this.drawDst = new RectF();
+        this.viewport = new Viewport();
+        this.focusValues = new float[2];
+        this.animator = new PhotoAnimator();
         Context context = getContext();
-        dragDetector = new DragDetector(new DragListener());
-        scaleDetector = new ScaleGestureDetector(context, new ScaleListener());
-        gestureDetector = new GestureDetector(context, new GestureListener());
+        gestureEngine = new GestureEngine(context, new DragListener());
         this.setEnableCrop(false);
         this.setClickable(true);
         this.setEnableScale(true);
     }
 
+    /**
+     * events reported: {@link #EVENT_TOUCH} masked action and pointer count,
+     * {@link #EVENT_DRAW}, {@link #EVENT_MATRIX} scale and rotation,
+     * {@link #EVENT_STATE} gesture constant of {@link GestureMetrics} or
+     * {@link GestureMetrics#GESTURE_NONE} when idle, {@link #EVENT_TRANSLATE}
+     * and {@link #EVENT_FLING} translate x and y, {@link #EVENT_SCALE} delta
+     * scale and result scale, {@link #EVENT_CROP} crop width and height
+     */
+    public void setDiagnosticsListener(DiagnosticsListener listener) {
+        this.diagnostics = listener;
+    }
+
+    public DiagnosticsListener getDiagnosticsListener() {
+        return diagnostics;
+    }
+
+    /**
+     * set the pixel format policy of the photos loaded by the view, one of
+     * {@link #PIXEL_AUTO}, {@link #PIXEL_QUALITY} and {@link #PIXEL_MEMORY}.
+     * the photos derived by crop keep the format of the source
+     */
+    public void setPixelPolicy(int pixelPolicy) {
+        this.pixelPolicy = pixelPolicy;
+    }
+
+    /**
+     * record the frame and input metrics of the gestures, null to stop
+     */
+    public void setGestureMetrics(GestureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public GestureMetrics getGestureMetrics() {
+        return metrics;
+    }
+
     public void setFitSpace(boolean fitSpace) {
         this.fitSpace = fitSpace;
     }
 
     public void setEnableScale(boolean enableScale) {
-        Log.d(TAG, "setEnableScale " + enableScale);
+        if (DEBUG) {
+            Log.d(TAG, "setEnableScale " + enableScale);
+        }
         this.enableScale = enableScale;
     }
 
     public void setCropSquare(boolean cropSquare) {
         this.cropSquare = cropSquare;
+        if (gridDetector != null) {
+            gridDetector.grid.setSquare(cropSquare);
+        }
     }
 
     public boolean getEnableCrop() {
@@ -161,7 +362,9 @@ public class PhotoView extends ImageView {
     }
 
     public void setEnableCrop(boolean enableCrop) {
-        Log.d(TAG, "setEnableCrop " + enableCrop);
+        if (DEBUG) {
+            Log.d(TAG, "setEnableCrop " + enableCrop);
+        }
         this.enableCrop = enableCrop;
         if (enableCrop) {
             gridDetector = new GridDetector();
@@ -172,6 +375,11 @@ public class PhotoView extends ImageView {
         invalidate();
     }
 
+    /**
+     * @deprecated the pixels are copied on the calling thread, use
+     * {@link #applyCrop(CropCallback)} or {@link #createTransformer}
+     */
+    @Deprecated
     public Bitmap applyCrop() {
         if (matrix == null || !photoValid || !enableCrop) {
             return null;
@@ -188,114 +396,781 @@ public class PhotoView extends ImageView {
         int height = (int) (rect.bottom - rect.top);
 
         Bitmap bitmap = Bitmap.createBitmap(width, height,
-                Bitmap.Config.ARGB_8888);
+                PixelPolicy.configOf(origin, photoRotation));
         Canvas canvas = new Canvas(bitmap);
         canvas.translate(-rect.left, -rect.top);
         canvas.drawBitmap(origin, matrix, null);
         return bitmap;
     }
 
+    /**
+     * get the region under the grid normalized to the size of the unrotated
+     * photo, which is used by {@link CropRequest}
+     */
+    public boolean getCropRegion(RectF region) {
+        if (matrix == null || !photoValid || !enableCrop) {
+            return false;
+        }
+        if (!matrix.invert(inverseMatrix)) {
+            return false;
+        }
+
+        region.set(gridDetector.getRect());
+        inverseMatrix.postScale(1f / drawableWidth, 1f / drawableHeight);
+        inverseMatrix.mapRect(region);
+        return true;
+    }
+
+    /**
+     * crop the photo under the grid in background, the region is decoded
+     * from the source at full resolution if the photo is loaded from an uri
+     */
+    public boolean applyCrop(CropCallback callback) {
+        RectF region = new RectF();
+        if (!getCropRegion(region)) {
+            return false;
+        }
+
+        Drawable drawable = getDrawable();
+        Bitmap bitmap = null;
+        if (drawable instanceof BitmapDrawable) {
+            bitmap = ((BitmapDrawable) drawable).getBitmap();
+        }
+        if (sourceUri == null && bitmap == null) {
+            return false;
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "applyCrop region " + region + " rotation " + photoRotation);
+        }
+        Bitmap.Config config = PixelPolicy.configOf(bitmap, photoRotation);
+        new PhotoCropper(getContext(), sourceUri, bitmap, region, photoRotation, config,
+                callback).start();
+        return true;
+    }
+
+    /**
+     * crop several regions of the photo in background and scale them to the
+     * requested sizes, the source is decoded once for the overlapping
+     * regions and the outputs are rendered in parallel
+     */
+    public boolean applyCrops(List<CropRequest> requests, BatchCropCallback callback) {
+        if (!photoValid || requests.isEmpty()) {
+            return false;
+        }
+
+        Drawable drawable = getDrawable();
+        Bitmap bitmap = null;
+        if (drawable instanceof BitmapDrawable) {
+            bitmap = ((BitmapDrawable) drawable).getBitmap();
+        }
+        if (sourceUri == null && bitmap == null) {
+            return false;
+        }
+
+        Bitmap.Config config = PixelPolicy.configOf(bitmap, photoRotation);
+        new BatchCropper(getContext(), sourceUri, bitmap, requests, photoRotation, config,
+                callback).start();
+        return true;
+    }
+
+    /**
+     * create a transformer rendering the photo in background, it starts with
+     * the rotation of the view and the region under the grid if crop is
+     * enabled. it renders on {@link PhotoTransformer#start()} or the first
+     * transform requested, the transforms requested on it are coalesced
+     *
+     * @return null if there is no photo
+     */
+    public PhotoTransformer createTransformer(PhotoTransformer.Callback callback) {
+        if (!photoValid) {
+            return null;
+        }
+
+        Drawable drawable = getDrawable();
+        Bitmap bitmap = null;
+        if (drawable instanceof BitmapDrawable) {
+            bitmap = ((BitmapDrawable) drawable).getBitmap();
+        }
+        if (sourceUri == null && bitmap == null) {
+            return null;
+        }
+
+        Bitmap.Config config = PixelPolicy.configOf(bitmap, 0);
+        RectF region = new RectF();
+        if (!getCropRegion(region)) {
+            region.set(0, 0, 1, 1);
+        }
+        return new PhotoTransformer(getContext(), sourceUri, bitmap, config, region,
+                photoRotation, callback);
+    }
+
+    /**
+     * an opaque bitmap resource is decoded as RGB_565 if the pixel policy
+     * chooses it, see {@link #setPixelPolicy(int)}
+     */
     @Override
     public void setImageResource(int resId) {
-        super.setImageResource(resId);
+        releaseSource();
+        sourceUri = getResourceUri(resId);
+        Bitmap bitmap = decodeResourceByPolicy(resId);
+        if (bitmap != null) {
+            setPhotoBitmap(bitmap);
+        } else {
+            super.setImageResource(resId);
+        }
         initMatrix();
     }
 
     @Override
     public void setImageBitmap(Bitmap bitmap) {
+        releaseSource();
         super.setImageBitmap(bitmap);
         initMatrix();
     }
 
     @Override
     public void setImageDrawable(Drawable drawable) {
+        releaseSource();
         super.setImageDrawable(drawable);
         initMatrix();
     }
 
+    /**
+     * an opaque bitmap is decoded as RGB_565 if the pixel policy chooses it,
+     * see {@link #setPixelPolicy(int)}
+     */
     @Override
     public void setImageURI(Uri uri) {
-        super.setImageURI(uri);
+        releaseSource();
+        sourceUri = uri;
+        Bitmap bitmap = decodeURIByPolicy(uri);
+        if (bitmap != null) {
+            setPhotoBitmap(bitmap);
+        } else {
+            super.setImageURI(uri);
+        }
         initMatrix();
     }
 
-    private void applyMatrix() {
-        Log.d(TAG, "apply matrix " + matrix.toString());
-        setImageMatrix(matrix);
+    /**
+     * @return the bitmap decoded as RGB_565, or null to let image view
+     *         decode the resource
+     */
+    private Bitmap decodeResourceByPolicy(int resId) {
+        if (pixelPolicy == PIXEL_QUALITY) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(getResources(), resId, options);
+        if (!isRGB565(options)) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeResource(getResources(), resId, options);
     }
 
-    private void setState(State state) {
-        Log.d(TAG, "setState " + state);
-        this.state = state;
+    /**
+     * @return the bitmap decoded as RGB_565, or null to let image view
+     *         decode the uri
+     */
+    private Bitmap decodeURIByPolicy(Uri uri) {
+        // the resources are scaled to the density by image view
+        if (uri == null || pixelPolicy == PIXEL_QUALITY
+                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())) {
+            return null;
+        }
+        InputStream stream = null;
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            stream = DecodeUtils.openStream(getContext(), uri);
+            BitmapFactory.decodeStream(stream, null, options);
+            DecodeUtils.closeQuietly(stream);
+            if (!isRGB565(options)) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            stream = DecodeUtils.openStream(getContext(), uri);
+            return BitmapFactory.decodeStream(stream, null, options);
+        } catch (IOException e) {
+            Log.w(TAG, "decode " + uri + " failed", e);
+            return null;
+        } finally {
+            DecodeUtils.closeQuietly(stream);
+        }
     }
 
-    @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        Log.d(TAG, "onDraw " + canvas);
-        if (enableCrop) {
-            gridDetector.draw(canvas);
-        }
+    private boolean isRGB565(BitmapFactory.Options bounds) {
+        return bounds.outWidth > 0 && bounds.outHeight > 0
+                && PixelPolicy.chooseConfig(pixelPolicy, bounds.outMimeType, bounds.outWidth,
+                bounds.outHeight) == Bitmap.Config.RGB_565;
     }
 
-    @Override
-    public boolean dispatchTouchEvent(MotionEvent event) {
-        boolean handled = false;
-        if (enableCrop) {
-            handled = gridDetector.onTouchEvent(event);
+    /**
+     * display a large image in tiles, only a base image fitting the view is
+     * held in memory and the visible tiles are decoded at the resolution
+     * required by the current scale
+     */
+    public void setImageRegion(Uri uri) {
+        releaseSource();
+        sourceUri = uri;
+        if (VERSION.SDK_INT < VERSION_CODES.GINGERBREAD_MR1) {
+            super.setImageURI(uri);
+            initMatrix();
+            return;
         }
 
-        int action = event.getAction() & MotionEvent.ACTION_MASK;
-        Log.d(TAG, "dispatchTouchEvent " + action);
+        openTiles(uri, false);
+    }
 
-        if (action == MotionEvent.ACTION_UP) {
-            canScale = false;
-        } else if (action == MotionEvent.ACTION_POINTER_DOWN) {
-            canScale = true;
-        }
+    /**
+     * @param keepViewport swap in the base image keeping the zoom and pan
+     */
+    private void openTiles(Uri uri, boolean keepViewport) {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int reqWidth = viewWidth > 0 ? viewWidth : metrics.widthPixels;
+        int reqHeight = viewHeight > 0 ? viewHeight : metrics.heightPixels;
+        tileDecoder = new TileDecoder(getContext(), uri, new TileListener(keepViewport));
+        tileDecoder.open(reqWidth, reqHeight, pixelPolicy);
+    }
 
-        if (!handled && enableScale) {
-            scaleDetector.onTouchEvent(event);
-            gestureDetector.onTouchEvent(event);
-            dragDetector.onTouchEvent(event);
-        }
+    /**
+     * decode the image in background with a sample size matching the view
+     * size and the max scale, a newer request cancels the pending one. the
+     * decoded image is shared through {@link BitmapCache}
+     */
+    public void loadImageURI(Uri uri) {
+        loadImageURI(uri, null);
+    }
 
-        return super.dispatchTouchEvent(event);
+    /**
+     * show the preview at once and swap in the image decoded from the uri,
+     * the zoom and pan of the preview are kept after the swap
+     */
+    public void loadImageURI(Uri uri, Bitmap preview) {
+        releaseSource();
+        if (preview != null) {
+            setPhotoBitmap(preview);
+            initMatrix();
+        }
+        sourceUri = uri;
+        startLoad(uri, Viewport.MAX_FACTOR, preview != null);
     }
 
-    private class GridDetector {
+    /**
+     * @param factor the scale relative to the view size to decode the image
+     *               for
+     */
+    private void startLoad(Uri uri, float factor, boolean keepViewport) {
+        loadFactor = factor;
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int width = viewWidth > 0 ? viewWidth : metrics.widthPixels;
+        int height = viewHeight > 0 ? viewHeight : metrics.heightPixels;
+        int reqWidth = (int) (width * factor);
+        int reqHeight = (int) (height * factor);
+        // an RGB_565 decode is not used under PIXEL_QUALITY
+        BitmapCache.Entry entry = BitmapCache.getInstance(getContext()).acquire(uri, reqWidth,
+                reqHeight, pixelPolicy);
+        if (entry != null) {
+            if (DEBUG) {
+                Log.d(TAG, "load from cache " + entry.getKey());
+            }
+            showEntry(entry, keepViewport);
+            return;
+        }
+        loadTask = PhotoLoader.load(getContext(), uri, reqWidth, reqHeight, width, height,
+                pixelPolicy, new LoadListener(uri, reqWidth, reqHeight, keepViewport));
+    }
 
-        private static final int COVER_COLOR = 0x66000000;
+    private void showEntry(BitmapCache.Entry entry, boolean keepViewport) {
+        releaseEntry();
+        cacheEntry = entry;
+        if (keepViewport) {
+            swapImage(entry.getBitmap());
+        } else {
+            setPhotoBitmap(entry.getBitmap());
+            initMatrix();
+        }
+        if (loadedCallback != null) {
+            loadedCallback.run();
+        }
+    }
 
-        private static final int BORDER_COLOR = Color.WHITE;
+    /**
+     * run on the main thread when the photo loaded from an uri is shown
+     */
+    void setLoadedCallback(Runnable callback) {
+        this.loadedCallback = callback;
+    }
 
-        private static final int DRAG_NONE = 0;
+    /**
+     * the bytes of the photo loaded from an uri and shown, 0 if there is none
+     */
+    int getLoadedByteCount() {
+        return cacheEntry != null ? BitmapCache.getByteCount(cacheEntry.getBitmap()) : 0;
+    }
 
-        private static final int DRAG_LEFT = 1;
+    private void releaseEntry() {
+        if (cacheEntry != null) {
+            BitmapCache.getInstance(getContext()).release(cacheEntry);
+            cacheEntry = null;
+        }
+    }
 
-        private static final int DRAG_TOP = 2;
+    public void loadImageResource(int resId) {
+        loadImageURI(getResourceUri(resId));
+    }
 
-        private static final int DRAG_RIGHT = 4;
+    /**
+     * the uri the crops and transforms decode the photo from, it survives
+     * the previews and resolutions swapped in while loading
+     */
+    Uri getSourceUri() {
+        return sourceUri;
+    }
 
-        private static final int DRAG_BOTTOM = 8;
+    private Uri getResourceUri(int resId) {
+        Resources resources = getResources();
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_ANDROID_RESOURCE)
+                .authority(resources.getResourcePackageName(resId))
+                .appendPath(resources.getResourceTypeName(resId))
+                .appendPath(resources.getResourceEntryName(resId))
+                .build();
+    }
 
-        private static final int DRAG_CENTER = 16;
+    private class LoadListener implements PhotoLoader.Callback {
 
-        private static final int STROKE_SIZE = 4;
+        private Uri uri;
 
-        private static final int EDGE_SIZE = 30;
+        private int reqWidth, reqHeight;
 
-        private PointF lastPoint;
+        private boolean keepViewport;
 
-        private Paint rectPaint;
+        LoadListener(Uri uri, int reqWidth, int reqHeight, boolean keepViewport) {
+            this.uri = uri;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.keepViewport = keepViewport;
+        }
 
-        private int dragType;
+        @Override
+        public void onPreviewLoaded(Bitmap preview) {
+            if (keepViewport) {
+                // the preview of the caller is shown
+                return;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "onPreviewLoaded width " + preview.getWidth() + " height "
+                        + preview.getHeight());
+            }
+            setPhotoBitmap(preview);
+            initMatrix();
+            keepViewport = true;
+        }
 
-        private RectF rectF;
+        @Override
+        public void onLoaded(Bitmap bitmap) {
+            if (DEBUG) {
+                Log.d(TAG, "onLoaded width " + bitmap.getWidth() + " height " + bitmap.getHeight());
+            }
+            loadTask = null;
+            String key = BitmapCache.getKey(uri, reqWidth, reqHeight, bitmap.getConfig());
+            showEntry(BitmapCache.getInstance(getContext()).put(key, bitmap), keepViewport);
+        }
 
-        private RectF innerRectF;
+        @Override
+        public void onLoadFailed() {
+            if (DEBUG) {
+                Log.d(TAG, "load photo failed");
+            }
+            loadTask = null;
+        }
+    }
 
-        private int borderSize;
+    /**
+     * set the bitmap without releasing the source, the public setters of
+     * image view go through {@link #setImageDrawable(Drawable)}
+     */
+    private void setPhotoBitmap(Bitmap bitmap) {
+        super.setImageDrawable(new BitmapDrawable(getResources(), bitmap));
+    }
+
+    /**
+     * replace the photo with another resolution of it, the matrix is remapped
+     * by the resolution ratio so the visible region stays where it is and
+     * the running gestures and animations continue
+     */
+    private void swapImage(Bitmap bitmap) {
+        if (!photoValid || viewWidth == 0 || viewHeight == 0) {
+            setPhotoBitmap(bitmap);
+            initMatrix();
+            return;
+        }
+
+        int oldWidth = drawableWidth;
+        int oldHeight = drawableHeight;
+        setPhotoBitmap(bitmap);
+        Drawable drawable = getDrawable();
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            initMatrix();
+            return;
+        }
+
+        float ratioX = (float) oldWidth / width;
+        float ratioY = (float) oldHeight / height;
+        if (DEBUG) {
+            Log.d(TAG, "swapImage ratioX " + ratioX + " ratioY " + ratioY);
+        }
+        drawableWidth = width;
+        drawableHeight = height;
+        matrix.preScale(ratioX, ratioY);
+        scaleFactor *= ratioX;
+        animator.rescale(ratioX);
+        updateFactors();
+        applyMatrix();
+    }
+
+    private void releaseSource() {
+        sourceUri = null;
+        pendingState = null;
+        detachedKey = null;
+        detachedLoad = false;
+        detachedTiles = false;
+        if (loadTask != null) {
+            loadTask.cancel();
+            loadTask = null;
+        }
+        releaseEntry();
+        releaseTiles();
+        releasePyramid();
+    }
+
+    private void releasePyramid() {
+        if (mipPyramid != null) {
+            mipPyramid.release();
+            mipPyramid = null;
+        }
+    }
+
+    private void releaseTiles() {
+        if (tileDecoder != null) {
+            tileDecoder.release();
+            tileDecoder = null;
+        }
+        tilesReady = false;
+    }
+
+    private class TileListener implements TileDecoder.Callback {
+
+        private boolean keepViewport;
+
+        TileListener(boolean keepViewport) {
+            this.keepViewport = keepViewport;
+        }
+
+        @Override
+        public void onBaseLoaded(Bitmap base) {
+            if (DEBUG) {
+                Log.d(TAG, "onBaseLoaded width " + base.getWidth() + " height " + base.getHeight());
+            }
+            if (keepViewport) {
+                swapImage(base);
+            } else {
+                setPhotoBitmap(base);
+                initMatrix();
+            }
+            tilesReady = true;
+        }
+
+        @Override
+        public void onTileLoaded() {
+            invalidate();
+        }
+
+        @Override
+        public void onLoadFailed() {
+            if (DEBUG) {
+                Log.d(TAG, "load tiles failed");
+            }
+            releaseTiles();
+        }
+    }
+
+    private void drawTiles(Canvas canvas) {
+        if (!tilesReady || tileDecoder == null || !photoValid) {
+            return;
+        }
+
+        float ratioX = (float) tileDecoder.getSourceWidth() / drawableWidth;
+        float ratioY = (float) tileDecoder.getSourceHeight() / drawableHeight;
+        // screen pixels per source pixel
+        float sourceScale = scaleFactor / ratioX;
+        int sampleSize = 1;
+        while (sampleSize * 2 * sourceScale <= 1) {
+            sampleSize *= 2;
+        }
+        if (sampleSize >= ratioX) {
+            // the base image is sharp enough for current scale
+            tileDecoder.cancelTiles();
+            return;
+        }
+
+        if (!matrix.invert(inverseMatrix)) {
+            return;
+        }
+        inverseMatrix.postScale(ratioX, ratioY);
+        visibleRect.set(0, 0, viewWidth, viewHeight);
+        inverseMatrix.mapRect(visibleRect);
+
+        int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(matrix);
+        canvas.scale(1 / ratioX, 1 / ratioY);
+        tileDecoder.draw(canvas, visibleRect, sampleSize);
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * draw only the part of the bitmap inside the view, instead of the whole
+     * bitmap through the matrix as image view does, so the pixels filled and
+     * sampled at a high scale are bounded by the view size
+     *
+     * @return false if the photo is not a bitmap and image view draws it
+     */
+    private boolean drawVisible(Canvas canvas) {
+        Drawable drawable = getDrawable();
+        if (!photoValid || !(drawable instanceof BitmapDrawable)) {
+            return false;
+        }
+        BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
+        Bitmap bitmap = bitmapDrawable.getBitmap();
+        if (bitmap == null || bitmap.isRecycled()) {
+            return false;
+        }
+        bitmap = getMipLevel(bitmap);
+        if (!matrix.invert(inverseMatrix)) {
+            return true;
+        }
+
+        // the visible rect in the drawable coordinates
+        visibleRect.set(0, 0, viewWidth, viewHeight);
+        inverseMatrix.mapRect(visibleRect);
+        if (!visibleRect.intersect(0, 0, drawableWidth, drawableHeight)) {
+            return true;
+        }
+
+        // the intrinsic size differs from the bitmap size by the density and
+        // the mip level
+        float ratioX = (float) bitmap.getWidth() / drawableWidth;
+        float ratioY = (float) bitmap.getHeight() / drawableHeight;
+        drawSrc.set((int) Math.floor(visibleRect.left * ratioX),
+                (int) Math.floor(visibleRect.top * ratioY),
+                (int) Math.ceil(visibleRect.right * ratioX),
+                (int) Math.ceil(visibleRect.bottom * ratioY));
+        if (!drawSrc.intersect(0, 0, bitmap.getWidth(), bitmap.getHeight())) {
+            return true;
+        }
+        drawDst.set(drawSrc.left / ratioX, drawSrc.top / ratioY,
+                drawSrc.right / ratioX, drawSrc.bottom / ratioY);
+
+        int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(matrix);
+        canvas.drawBitmap(bitmap, drawSrc, drawDst, bitmapDrawable.getPaint());
+        canvas.restoreToCount(saveCount);
+        return true;
+    }
+
+    /**
+     * the level of the mip pyramid for the current scale, the pyramid is
+     * created the first time the bitmap is drawn scaled down by half
+     */
+    private Bitmap getMipLevel(Bitmap bitmap) {
+        // screen pixels per bitmap pixel
+        float scale = scaleFactor * drawableWidth / bitmap.getWidth();
+        if (mipPyramid != null && mipPyramid.getBase() != bitmap) {
+            releasePyramid();
+        }
+        if (mipPyramid == null) {
+            if (scale > 0.5f) {
+                return bitmap;
+            }
+            BitmapCache cache = BitmapCache.getInstance(getContext());
+            mipPyramid = new MipPyramid(bitmap, cache, new MipPyramid.Callback() {
+
+                @Override
+                public void onLevelLoaded() {
+                    invalidate();
+                }
+            });
+        }
+        return mipPyramid.getLevel(scale);
+    }
+
+    /**
+     * mark the matrix changed, it is committed to the image at once or at
+     * the end of the current input batch
+     */
+    private void applyMatrix() {
+        matrixDirty = true;
+        if (!inputBatch) {
+            commitMatrix();
+        }
+    }
+
+    private void commitMatrix() {
+        if (!matrixDirty) {
+            return;
+        }
+        matrixDirty = false;
+        if (DEBUG) {
+            Log.d(TAG, "apply matrix " + matrix.toString());
+        }
+        if (diagnostics != null) {
+            diagnostics.onEvent(EVENT_MATRIX, scaleFactor, photoRotation);
+        }
+        if (metrics != null) {
+            metrics.onCommit();
+            metrics.onFrameRequested();
+        }
+        setImageMatrix(matrix);
+    }
+
+    private void setState(State state) {
+        if (DEBUG) {
+            Log.d(TAG, "setState " + state);
+        }
+        if (diagnostics != null) {
+            diagnostics.onEvent(EVENT_STATE, state.gesture, 0);
+        }
+        if (metrics != null) {
+            metrics.onGesture(state.gesture);
+        }
+        this.state = state;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        GestureMetrics.beginSection("PhotoView.draw");
+        long startTime = metrics != null ? System.nanoTime() : 0;
+        try {
+            drawPhoto(canvas);
+        } finally {
+            if (metrics != null) {
+                metrics.onDraw(startTime, System.nanoTime() - startTime);
+            }
+            GestureMetrics.endSection();
+        }
+    }
+
+    private void drawPhoto(Canvas canvas) {
+        if (!drawVisible(canvas)) {
+            super.onDraw(canvas);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "onDraw " + canvas);
+        }
+        if (diagnostics != null) {
+            diagnostics.onEvent(EVENT_DRAW, 0, 0);
+        }
+        drawTiles(canvas);
+        if (enableCrop) {
+            gridDetector.draw(canvas);
+        }
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        GestureMetrics.beginSection("PhotoView.touch");
+        long startTime = metrics != null ? System.nanoTime() : 0;
+        try {
+            return handleTouchEvent(event);
+        } finally {
+            if (metrics != null) {
+                metrics.onTouch(System.nanoTime() - startTime);
+            }
+            GestureMetrics.endSection();
+        }
+    }
+
+    private boolean handleTouchEvent(MotionEvent event) {
+        int action = event.getAction() & MotionEvent.ACTION_MASK;
+        if (DEBUG) {
+            Log.d(TAG, "dispatchTouchEvent " + action);
+        }
+        if (diagnostics != null) {
+            diagnostics.onEvent(EVENT_TOUCH, action, event.getPointerCount());
+        }
+
+        if (action == MotionEvent.ACTION_DOWN && animator != null) {
+            // a new gesture stops the running animations
+            animator.cancel();
+        }
+
+        // the matrix changes of the gesture are committed once
+        inputBatch = true;
+        try {
+            gestureEngine.onTouchEvent(event);
+        } finally {
+            inputBatch = false;
+            commitMatrix();
+        }
+
+        return super.dispatchTouchEvent(event);
+    }
+
+    private class GridDetector {
+
+        private static final int COVER_COLOR = 0x66000000;
+
+        private static final int BORDER_COLOR = Color.WHITE;
+
+        private static final int STROKE_SIZE = 4;
+
+        private static final int EDGE_SIZE = 30;
+
+        private static final int CENTER_SIZE = 6;
+
+        private PointF lastPoint;
+
+        private Paint rectPaint;
+
+        private int dragType;
+
+        private RectF rectF;
+
+        private RectF innerRectF;
+
+        private CropGrid grid;
+
+        private RectF dirtyRectF;
+
+        private Rect dirtyRect;
+
+        private Path path;
+
+        private RectF[] maskRects;
+
+        private Paint coverPaint;
+
+        private boolean geometryDirty;
+
+        private int maskWidth, maskHeight;
+
+        private int borderSize;
+
+        private int lineSize;
+
+        private int centerSize;
+
+        private int sideSize;
 
         private int edgeSize;
 
@@ -304,87 +1179,140 @@ public class PhotoView extends ImageView {
         public GridDetector() {
             this.rectF = new RectF();
             this.innerRectF = new RectF();
+            this.dirtyRectF = new RectF();
+            this.dirtyRect = new Rect();
+            this.path = new Path();
+            this.maskRects = new RectF[]{
+                    new RectF(), new RectF(), new RectF(), new RectF()
+            };
             this.lastPoint = new PointF();
             this.rectPaint = new Paint();
+            this.coverPaint = new Paint();
+            this.geometryDirty = true;
             edgeSize = dp2px(EDGE_SIZE);
             minSize = 4f * edgeSize;
+            grid = new CropGrid(minSize);
+            grid.setSquare(cropSquare);
+            borderSize = dp2px(STROKE_SIZE);
+            lineSize = borderSize / 3;
+            centerSize = dp2px(CENTER_SIZE);
+            sideSize = centerSize * 2;
             rectPaint.setColor(BORDER_COLOR);
             rectPaint.setStyle(Style.STROKE);
+            coverPaint.setColor(COVER_COLOR);
+            coverPaint.setStyle(Style.FILL);
         }
 
         public RectF getRect() {
             return rectF;
         }
 
+        /**
+         * draw the grid and the dim mask around it, the mask is drawn as four
+         * rects so no clip op is required and it works with hardware
+         * acceleration. the geometry is updated only when the rect changes
+         */
         public void draw(Canvas canvas) {
-            borderSize = dp2px(STROKE_SIZE);
-            int centerSize = dp2px(6);
-            int sideSize = centerSize * 2;
-            int size = borderSize / 2;
-            int lineSize = borderSize / 3;
+            updateGeometry(getWidth(), getHeight());
+            if (DEBUG) {
+                Log.d(TAG, "draw " + innerRectF.toString());
+            }
+
             rectPaint.setStrokeWidth(lineSize);
-            innerRectF.set(rectF.left + size, rectF.top + size,
-                    rectF.right - size, rectF.bottom - size);
-            Log.d(TAG, "draw " + innerRectF.toString());
+            rectPaint.setStyle(Style.STROKE);
             canvas.drawLine(rectF.centerX(), rectF.top, rectF.centerX(), rectF.bottom, rectPaint);
             canvas.drawLine(rectF.left, rectF.centerY(), rectF.right, rectF.centerY(), rectPaint);
 
             rectPaint.setStyle(Style.FILL);
-            Path path = new Path();
+            canvas.drawPath(path, rectPaint);
+
+            for (RectF maskRect : maskRects) {
+                if (!maskRect.isEmpty()) {
+                    canvas.drawRect(maskRect, coverPaint);
+                }
+            }
+
+            rectPaint.setStrokeWidth(borderSize);
+            rectPaint.setStyle(Style.STROKE);
+            canvas.drawRect(innerRectF, rectPaint);
+        }
+
+        private void updateGeometry(int width, int height) {
+            if (!geometryDirty && width == maskWidth && height == maskHeight) {
+                return;
+            }
+            geometryDirty = false;
+            maskWidth = width;
+            maskHeight = height;
+
+            int size = borderSize / 2;
+            innerRectF.set(rectF.left + size, rectF.top + size,
+                    rectF.right - size, rectF.bottom - size);
+
+            maskRects[0].set(0, 0, width, innerRectF.top);
+            maskRects[1].set(0, innerRectF.bottom, width, height);
+            maskRects[2].set(0, innerRectF.top, innerRectF.left, innerRectF.bottom);
+            maskRects[3].set(innerRectF.right, innerRectF.top, width, innerRectF.bottom);
+
+            path.reset();
             path.moveTo(rectF.centerX() - centerSize, rectF.centerY());
             path.lineTo(rectF.centerX(), rectF.centerY() - centerSize);
             path.lineTo(rectF.centerX() + centerSize, rectF.centerY());
             path.lineTo(rectF.centerX(), rectF.centerY() + centerSize);
             path.close();
-            canvas.drawPath(path, rectPaint);
-            path.reset();
             path.moveTo(rectF.left, rectF.top);
             path.lineTo(rectF.left + sideSize, rectF.top);
             path.lineTo(rectF.left, rectF.top + sideSize);
             path.close();
-            canvas.drawPath(path, rectPaint);
-            path.reset();
             path.moveTo(rectF.right, rectF.top);
             path.lineTo(rectF.right - sideSize, rectF.top);
             path.lineTo(rectF.right, rectF.top + sideSize);
             path.close();
-            canvas.drawPath(path, rectPaint);
-            path.reset();
             path.moveTo(rectF.left, rectF.bottom);
             path.lineTo(rectF.left + sideSize, rectF.bottom);
             path.lineTo(rectF.left, rectF.bottom - sideSize);
             path.close();
-            canvas.drawPath(path, rectPaint);
-            path.reset();
             path.moveTo(rectF.right, rectF.bottom);
             path.lineTo(rectF.right - sideSize, rectF.bottom);
             path.lineTo(rectF.right, rectF.bottom - sideSize);
             path.close();
-            canvas.drawPath(path, rectPaint);
+        }
 
-            canvas.clipRect(innerRectF, Region.Op.XOR);
-            canvas.drawColor(COVER_COLOR);
-            rectPaint.setStrokeWidth(borderSize);
-            rectPaint.setStyle(Style.STROKE);
-            canvas.drawRect(innerRectF, rectPaint);
+        /**
+         * @return whether the grid is hit and dragged
+         */
+        public boolean startDrag(float x, float y) {
+            dragType = getDrag(x, y);
+            lastPoint.set(x, y);
+            return dragType != CropGrid.DRAG_NONE;
         }
 
-        public boolean onTouchEvent(MotionEvent event) {
-            int action = event.getAction() & MotionEvent.ACTION_MASK;
-            if (action == MotionEvent.ACTION_DOWN) {
-                dragType = getDrag(event);
-                lastPoint.set(event.getX(), event.getY());
-            } else if (action == MotionEvent.ACTION_POINTER_DOWN
-                    || action == MotionEvent.ACTION_UP
-                    || action == MotionEvent.ACTION_POINTER_UP) {
-                dragType = DRAG_NONE;
-            } else if (action == MotionEvent.ACTION_MOVE) {
-                if (dragType != DRAG_NONE) {
-                    dragRect(event);
-                    invalidate();
-                }
+        public void dragTo(float x, float y) {
+            if (dragType == CropGrid.DRAG_NONE) {
+                return;
             }
-            return dragType != DRAG_NONE;
+            dirtyRectF.set(rectF);
+            dragRect(x, y);
+            if (diagnostics != null) {
+                diagnostics.onEvent(EVENT_CROP, rectF.width(), rectF.height());
+            }
+            invalidateGrid();
+        }
+
+        public void endDrag() {
+            dragType = CropGrid.DRAG_NONE;
+        }
+
+        /**
+         * only the area between the old and the new grid is changed, which is
+         * within the union of them. the border and the handles are drawn
+         * inside the grid rect, expand it by the border size for antialias
+         */
+        private void invalidateGrid() {
+            dirtyRectF.union(rectF);
+            dirtyRectF.roundOut(dirtyRect);
+            dirtyRect.inset(-borderSize, -borderSize);
+            invalidate(dirtyRect);
         }
 
         public void initRect() {
@@ -392,112 +1320,116 @@ public class PhotoView extends ImageView {
             float height = viewHeight > photoRect.height() ? photoRect.height() : viewHeight;
 
             float rectSize = Math.min(width, height) * 2 / 3;
-            rectF.set((viewWidth - rectSize) / 2, (viewHeight - rectSize) / 2,
+            grid.set((viewWidth - rectSize) / 2, (viewHeight - rectSize) / 2,
                     (viewWidth + rectSize) / 2, (viewHeight + rectSize) / 2);
-        }
-
-        private int getDrag(MotionEvent event) {
-            int type = DRAG_NONE;
-
-            float px = event.getX();
-            float py = event.getY();
-
-            if ((py >= (rectF.top - edgeSize) && py <= (rectF.bottom + edgeSize))) {
-                if (Math.abs(px - rectF.left) < edgeSize) {
-                    type |= DRAG_LEFT;
-                }
-                if (Math.abs(px - rectF.right) < edgeSize) {
-                    type |= DRAG_RIGHT;
-                }
-            }
-            if ((px >= (rectF.left - edgeSize) && (px <= (rectF.right + edgeSize)))) {
-                if (Math.abs(py - rectF.top) < edgeSize) {
-                    type |= DRAG_TOP;
-                }
-                if (Math.abs(py - rectF.bottom) < edgeSize) {
-                    type |= DRAG_BOTTOM;
-                }
+            syncRect();
+        }
+
+        /**
+         * set the grid rect in view coordinates, it is not smaller than the
+         * min size
+         */
+        public void setRect(RectF rect) {
+            float width = Math.max(minSize, rect.width());
+            float height = Math.max(minSize, rect.height());
+            if (cropSquare) {
+                width = height = Math.max(width, height);
             }
+            grid.set(rect.left, rect.top, rect.left + width, rect.top + height);
+            syncRect();
+        }
 
-            if (Math.abs(px - (rectF.left + rectF.right) / 2) < edgeSize
-                    && Math.abs(py - (rectF.top + rectF.bottom) / 2) < edgeSize) {
-                type = DRAG_CENTER;
-            }
+        private void syncRect() {
+            rectF.set(grid.getLeft(), grid.getTop(), grid.getRight(), grid.getBottom());
+            geometryDirty = true;
+        }
 
-            if (cropSquare && isPowerOfTwo(type)) {
-                type = DRAG_CENTER;
+        private int getDrag(float x, float y) {
+            int type = grid.getDrag(x, y, edgeSize);
+            if (DEBUG) {
+                Log.d(TAG, "getDrag type " + type);
             }
-
-            Log.d(TAG, "getDrag type " + type);
             return type;
         }
 
-        private void dragRect(MotionEvent event) {
-            float deltaX = event.getX() - lastPoint.x;
-            float deltaY = event.getY() - lastPoint.y;
-            lastPoint.set(event.getX(), event.getY());
+        private void dragRect(float x, float y) {
+            float deltaX = x - lastPoint.x;
+            float deltaY = y - lastPoint.y;
+            lastPoint.set(x, y);
 
             float left = photoRect.left > 0 ? photoRect.left : 0;
             float top = photoRect.top > 0 ? photoRect.top : 0;
             float right = photoRect.right > viewWidth ? viewWidth : photoRect.right;
             float bottom = photoRect.bottom > viewHeight ? viewHeight : photoRect.bottom;
 
-            if ((dragType & DRAG_CENTER) != 0) {
-                RectF temp = new RectF(rectF);
-                temp.offset(deltaX, deltaY);
-                if (temp.top >= top && temp.left >= left && temp.right <= right && temp.bottom <= bottom) {
-                    rectF.offset(deltaX, deltaY);
-                }
-                return;
-            }
-
-            if (cropSquare && dragType != DRAG_CENTER) {
-                float leftSpace = rectF.left - left;
-                float topSpace = rectF.top - top;
-                float rightSpace = right - rectF.right;
-                float bottomSpace = bottom - rectF.bottom;
-                if (deltaX > 0) {
-                    deltaX = deltaX < rightSpace ? deltaX : rightSpace;
-                } else {
-                    deltaX = -deltaX < leftSpace ? deltaX : -leftSpace;
-                }
+            grid.drag(dragType, deltaX, deltaY, left, top, right, bottom);
+            syncRect();
+        }
+    }
 
-                if (deltaY > 0) {
-                    deltaY = deltaY < bottomSpace ? deltaY : bottomSpace;
-                } else {
-                    deltaY = -deltaY < topSpace ? deltaY : -topSpace;
-                }
+    /**
+     * release the cache entry, the tiles and the pyramid while the view is
+     * off the window, such as a page kept by a pager. the photo shown and the
+     * viewport are kept, the rest is acquired again when attached
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (animator != null) {
+            // stop the frame callbacks
+            animator.cancel();
+        }
+        if (cacheEntry != null) {
+            detachedKey = cacheEntry.getKey();
+            releaseEntry();
+        }
+        if (loadTask != null) {
+            loadTask.cancel();
+            loadTask = null;
+            detachedLoad = true;
+        }
+        if (tileDecoder != null) {
+            releaseTiles();
+            detachedTiles = true;
+        }
+        releasePyramid();
+    }
 
-                float delta = Math.min(Math.abs(deltaX), Math.abs(deltaY));
-                if (delta == 0) {
-                    return;
-                }
-                deltaX = delta * (deltaX / Math.abs(deltaX));
-                deltaY = delta * (deltaY / Math.abs(deltaY));
-                Log.d(TAG, "cropSquare " + deltaX + " " + deltaY);
-            }
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (detachedKey != null) {
+            acquireEntry(detachedKey);
+            detachedKey = null;
+        }
+        if (detachedLoad) {
+            detachedLoad = false;
+            startLoad(sourceUri, loadFactor, getDrawable() != null);
+        }
+        if (detachedTiles) {
+            detachedTiles = false;
+            openTiles(sourceUri, getDrawable() != null);
+        }
+    }
 
-            if ((dragType & DRAG_LEFT) != 0) {
-                deltaX = deltaX + rectF.left < left ? left - rectF.left : deltaX;
-                deltaX = rectF.left + deltaX + minSize > rectF.right ? rectF.right - rectF.left - minSize : deltaX;
-                rectF.left += deltaX;
-            }
-            if ((dragType & DRAG_TOP) != 0) {
-                deltaY = deltaY + rectF.top < top ? top - rectF.top : deltaY;
-                deltaY = rectF.top + deltaY + minSize > rectF.bottom ? rectF.bottom - rectF.top - minSize : deltaY;
-                rectF.top += deltaY;
-            }
-            if ((dragType & DRAG_RIGHT) != 0) {
-                deltaX = rectF.right + deltaX > right ? right - rectF.right : deltaX;
-                deltaX = (rectF.right + deltaX - minSize) < rectF.left ? (minSize - rectF.right + rectF.left) : deltaX;
-                rectF.right += deltaX;
-            }
-            if ((dragType & DRAG_BOTTOM) != 0) {
-                deltaY = rectF.bottom + deltaY > bottom ? bottom - rectF.bottom : deltaY;
-                deltaY = (rectF.bottom + deltaY - minSize) < rectF.top ? (minSize - rectF.bottom + rectF.top)
-                        : deltaY;
-                rectF.bottom += deltaY;
-            }
+    /**
+     * hold the entry of the photo shown again, the photo is cached again if
+     * it was evicted, or replaced by the one cached by another view
+     */
+    private void acquireEntry(String key) {
+        Drawable drawable = getDrawable();
+        if (!(drawable instanceof BitmapDrawable)) {
+            return;
+        }
+        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        BitmapCache cache = BitmapCache.getInstance(getContext());
+        BitmapCache.Entry entry = cache.acquire(key);
+        if (entry == null) {
+            entry = cache.put(key, bitmap);
+        }
+        cacheEntry = entry;
+        if (entry.getBitmap() != bitmap) {
+            swapImage(entry.getBitmap());
         }
     }
 
@@ -512,7 +1444,9 @@ public class PhotoView extends ImageView {
         viewWidth = right - left - getPaddingLeft() - getPaddingRight();
         viewHeight = bottom - top - getPaddingTop() - getPaddingBottom();
 
-        Log.d(TAG, "onLayout viewWidth " + viewWidth + " viewHeight " + viewHeight);
+        if (DEBUG) {
+            Log.d(TAG, "onLayout viewWidth " + viewWidth + " viewHeight " + viewHeight);
+        }
         initMatrix();
     }
 
@@ -520,637 +1454,1140 @@ public class PhotoView extends ImageView {
 
         @Override
         public void onDragBegin() {
-            Log.d(TAG, "onDragBegin");
+            if (DEBUG) {
+                Log.d(TAG, "onDragBegin");
+            }
             setState(State.DRAG);
         }
 
         @Override
         public void onDrag(float deltaX, float deltaY) {
-            Log.d(TAG, "onDrag deltaX " + deltaX + " deltaY " + deltaY);
+            if (DEBUG) {
+                Log.d(TAG, "onDrag deltaX " + deltaX + " deltaY " + deltaY);
+            }
             if (state != State.DRAG) {
-                Log.d(TAG, "cancel drag for current state " + state);
+                if (DEBUG) {
+                    Log.d(TAG, "cancel drag for current state " + state);
+                }
                 return;
             }
-            float left = photoRect.left;
-            float top = photoRect.top;
-            float bottom = photoRect.bottom;
-            float right = photoRect.right;
-
-            deltaX = checkTranslage(deltaX, viewWidth, left, right);
-            deltaY = checkTranslage(deltaY, viewHeight, top, bottom);
+            deltaX = viewport.clampTranslateX(deltaX);
+            deltaY = viewport.clampTranslateY(deltaY);
             postTranslate(deltaX, deltaY);
         }
 
         @Override
         public void onDragEnd() {
-            Log.d(TAG, "onDragEnd");
-            if (state == State.DRAG) {
-                setState(State.NONE);
+            if (DEBUG) {
+                Log.d(TAG, "onDragEnd");
+            }
+            if (state != State.DRAG) {
+                return;
+            }
+            setState(State.NONE);
+
+            // settle the photo if an animation was cancelled by this drag
+            if (!adjustToScale(viewWidth / 2f, viewHeight / 2f)) {
+                adjustToBounds();
             }
         }
 
     }
 
-    private float checkTranslage(float delta, float viewSize, float min, float max) {
-        Log.d(TAG, "checkTranslage delta " + delta + " viewSize " + viewSize + " min " + min
-                + " max " + max);
-        if ((max - min) <= viewSize || delta == 0) {
-            return 0;
+    private boolean adjustToBounds() {
+        if (!viewport.getAdjustTranslate(focusValues)) {
+            return false;
         }
 
-        if (delta > 0 && (min + delta) > 0) {
-            return 0 - min > delta ? delta : 0 - min;
-        } else if (delta < 0 && (max + delta) < viewSize) {
-            return viewSize - max < delta ? delta : viewSize - max;
-        } else {
-            // delta < 0 && (max + delta) >= viewSize
-            // delta > 0 && (min + delta) <= 0
-            return delta;
+        float px = focusValues[0];
+        float py = focusValues[1];
+        if (DEBUG) {
+            Log.d(TAG, "adjustToBounds px " + px + " py " + py);
         }
+        animator.startTranslate(px, py);
+        return true;
     }
 
-    private class GestureListener extends
-            GestureDetector.SimpleOnGestureListener {
+    private boolean adjustToScale(float px, float py) {
+        if (DEBUG) {
+            Log.d(TAG, "adjustToScale " + scaleFactor);
+        }
+        float targetScale = viewport.getAdjustScale();
+        if (targetScale == Viewport.NO_SCALE) {
+            return false;
+        }
 
-        @Override
-        public boolean onSingleTapConfirmed(MotionEvent e) {
-            Log.d(TAG, "onSingleTapConfirmed");
-            if (onClickListener != null) {
-                onClickListener.onClick(PhotoView.this);
+        viewport.calScaleFocus(targetScale, px, py, focusValues);
+        animator.startScale(targetScale, focusValues[0], focusValues[1]);
+        return true;
+    }
+
+    /**
+     * drive the scale, translate and fling animations from frame callbacks.
+     * animations running at the same time are applied together and committed
+     * with one matrix update per frame, the frame time is monotonic
+     */
+    private class PhotoAnimator implements Runnable {
+
+        private static final long SCALE_DURATION = 300;
+
+        private static final long TRANSLATE_DURATION = 300;
+
+        private static final long FRAME_DELAY = 1000 / 60;
+
+        private Interpolator interpolator;
+
+        private OverScroller scroller;
+
+        private FrameCallbackCompat frameCallback;
+
+        private boolean scheduled;
+
+        private boolean scaling, translating, flinging;
+
+        private long scaleStart, transStart;
+
+        private float startScale, targetScale;
+
+        private PointF focusPoint;
+
+        private float transX, transY;
+
+        private float lastInterpolate;
+
+        private int currX, currY;
+
+        PhotoAnimator() {
+            this.interpolator = new LinearInterpolator();
+            this.scroller = new OverScroller(getContext());
+            this.focusPoint = new PointF();
+            if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN) {
+                this.frameCallback = new FrameCallbackCompat(this);
             }
-            return true;
         }
 
-        @Override
-        public void onLongPress(MotionEvent e) {
-            Log.d(TAG, "onLongPress");
-            if (onLongClickListener != null) {
-                onLongClickListener.onLongClick(PhotoView.this);
+        public void startScale(float targetScale, float px, float py) {
+            if (DEBUG) {
+                Log.d(TAG, "startScale targetScale " + targetScale);
             }
+            this.scaleStart = currentTime();
+            this.startScale = scaleFactor;
+            this.targetScale = targetScale;
+            this.focusPoint.set(px, py);
+            this.scaling = true;
+            updateState();
+            schedule();
         }
 
-        @Override
-        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX,
-                float velocityY) {
-            Log.d(TAG, "onFling vx " + velocityX + " vy " + velocityY + " state " + state);
-            if (state == State.NONE || state == State.FLING || state == State.DRAG) {
-                if (flingRunnable != null) {
-                    flingRunnable.cancelFling();
-                }
-                flingRunnable = new FlingRunnable((int) velocityX, (int) velocityY);
-                postAnimation(flingRunnable);
-            } else {
-                Log.d(TAG, "cancel fling for current state " + state);
+        public void startTranslate(float px, float py) {
+            if (DEBUG) {
+                Log.d(TAG, "startTranslate px " + px + " py " + py);
             }
-            return super.onFling(e1, e2, velocityX, velocityY);
+            this.transStart = currentTime();
+            this.transX = px;
+            this.transY = py;
+            this.lastInterpolate = 0;
+            this.translating = true;
+            updateState();
+            schedule();
         }
 
-        @Override
-        public boolean onDoubleTap(MotionEvent e) {
-            if (state != State.NONE) {
-                return false;
-            }
-            float targetScale = (scaleFactor == normalFactor) ? zoomFactor
-                    : normalFactor;
-            Log.d(TAG, "onDoubleTap targetScale " + targetScale);
-            PointF point = new PointF(e.getX(), e.getY());
-            point = calScaleFocus(targetScale, point);
-            ScaleRunnable scaleRunnable = new ScaleRunnable(targetScale, point);
-            postAnimation(scaleRunnable);
-            return true;
-        }
+        public void startFling(int velX, int velY) {
+            if (DEBUG) {
+                Log.d(TAG, "startFling velX " + velX + " velY " + velY);
+            }
+            int startX = (int) photoRect.left;
+            int startY = (int) photoRect.top;
+            int minX, maxX, minY, maxY;
 
-        @Override
-        public boolean onDoubleTapEvent(MotionEvent e) {
-            Log.d(TAG, "onDoubleTapEvent");
-            return false;
-        }
-    }
+            float photoWidth = photoRect.width();
+            float photoHeight = photoRect.height();
+            if (photoWidth > viewWidth) {
+                maxX = 0;
+                minX = viewWidth - (int) photoWidth;
+            } else {
+                minX = maxX = startX;
+            }
 
-    private class ScaleListener extends SimpleOnScaleGestureListener {
+            if (photoHeight > viewHeight) {
+                maxY = 0;
+                minY = viewHeight - (int) photoHeight;
+            } else {
+                minY = maxY = startY;
+            }
 
-        private boolean overZoom;
+            scroller.fling(startX, startY, velX, velY,
+                    minX, maxX, minY, maxY, 1, 1);
+            currX = startX;
+            currY = startY;
+            flinging = true;
+            updateState();
+            schedule();
+        }
 
-        @Override
-        public boolean onScaleBegin(ScaleGestureDetector detector) {
-            Log.d(TAG, "onScaleBegin canScale " + canScale);
-            if (!canScale) {
-                return true;
-            }
-            overZoom = scaleFactor >= zoomFactor;
-            setState(State.SCALE);
-            return true;
+        /**
+         * the photo is replaced by another resolution, the scale targets
+         * follow the ratio between them
+         */
+        public void rescale(float ratio) {
+            startScale *= ratio;
+            targetScale *= ratio;
         }
 
-        @Override
-        public boolean onScale(ScaleGestureDetector detector) {
-            if (state != State.NONE && state != State.SCALE) {
-                Log.d(TAG, "cancel scale for current state " + state);
-                return true;
-            }
-            float factor = detector.getScaleFactor();
-            float px = detector.getFocusX();
-            float py = detector.getFocusY();
-            float nextScale = scaleFactor * factor;
-            if (nextScale > maxFactor) {
-                factor = maxFactor / scaleFactor;
-            } else if (!overZoom && nextScale > zoomFactor) {
-                factor = zoomFactor / scaleFactor;
-            } else if (nextScale < minFactor) {
-                factor = minFactor / scaleFactor;
-            }
-            Log.d(TAG, "onScale current " + scaleFactor + " factor " + factor + " px " + px + " py " + py);
-            postScale(factor, px, py);
-            applyMatrix();
-            return true;
+        public boolean isRunning() {
+            return scaling || translating || flinging;
         }
 
-        @Override
-        public void onScaleEnd(ScaleGestureDetector detector) {
-            super.onScaleEnd(detector);
-            Log.d(TAG, "onScaleEnd");
-            overZoom = false;
-            if (state != State.SCALE) {
+        /**
+         * stop all the animations, the matrix keeps the current frame
+         */
+        public void cancel() {
+            if (!isRunning()) {
                 return;
             }
+            if (DEBUG) {
+                Log.d(TAG, "cancel animations");
+            }
+            scaling = false;
+            translating = false;
+            flinging = false;
+            scroller.forceFinished(true);
+            unschedule();
+            updateState();
+        }
 
-            setState(State.NONE);
+        @Override
+        public void run() {
+            doFrame(currentTime());
+        }
 
-            float px = detector.getFocusX();
-            float py = detector.getFocusY();
-            PointF pointF = new PointF(px, py);
-            if (adjustToScale(pointF)) {
-                Log.d(TAG, "adjustToScale");
-            } else if (adjustToBounds()) {
-                Log.d(TAG, "adjustToBounds");
+        public void doFrame(long frameTime) {
+            GestureMetrics.beginSection("PhotoView.animate");
+            try {
+                animateFrame(frameTime);
+            } finally {
+                GestureMetrics.endSection();
             }
         }
-    }
-
-    private boolean adjustToBounds() {
-        float left = photoRect.left;
-        float top = photoRect.top;
-        float right = photoRect.right;
-        float bottom = photoRect.bottom;
 
-        float px = 0;
-        float py = 0;
+        private void animateFrame(long frameTime) {
+            scheduled = false;
+            if (!photoValid) {
+                cancel();
+                return;
+            }
 
-        float horSpace = (viewWidth - photoRect.width()) / 2;
-        float verSpace = (viewHeight - photoRect.height()) / 2;
+            boolean changed = false;
+            if (scaling) {
+                float interpolate = calInterpolate(frameTime, scaleStart, SCALE_DURATION);
+                float nextScale = startScale + (targetScale - startScale) * interpolate;
+                scaleMatrix(nextScale / scaleFactor, focusPoint.x, focusPoint.y);
+                scaling = interpolate < 1f;
+                changed = true;
+            }
 
-        if (left > 0) {
-            px = horSpace > 0 ? horSpace - left : -left;
-        }
-        if (top > 0) {
-            py = verSpace > 0 ? verSpace - top : -top;
-        }
-        if (right < viewWidth) {
-            px = horSpace > 0 ? viewWidth - right - horSpace : viewWidth - right;
-        }
-        if (bottom < viewHeight) {
-            py = verSpace > 0 ? viewHeight - bottom - verSpace : viewHeight - bottom;
-        }
-        boolean translate = px != 0 || py != 0;
-        if (!translate) {
-            return false;
-        }
+            if (translating) {
+                float interpolate = calInterpolate(frameTime, transStart, TRANSLATE_DURATION);
+                float delta = interpolate - lastInterpolate;
+                lastInterpolate = interpolate;
+                translateMatrix(transX * delta, transY * delta);
+                translating = interpolate < 1f;
+                changed = true;
+            }
 
-        Log.d(TAG, "adjustToBounds px " + px + " py " + py);
-        TransRunnable translateRunnbale = new TransRunnable(px, py);
-        post(translateRunnbale);
-        return true;
-    }
+            if (flinging) {
+                if (scroller.computeScrollOffset()) {
+                    int newX = scroller.getCurrX();
+                    int newY = scroller.getCurrY();
+                    int px = newX - currX;
+                    int py = newY - currY;
+                    currX = newX;
+                    currY = newY;
+                    if (diagnostics != null) {
+                        diagnostics.onEvent(EVENT_FLING, px, py);
+                    }
+                    translateMatrix(px, py);
+                    changed = true;
+                }
+                flinging = !scroller.isFinished();
+            }
 
-    private boolean adjustToScale(PointF point) {
-        Log.d(TAG, "adjustToScale " + scaleFactor);
-        float targetScale = -1;
-        if (scaleFactor > maxFactor) {
-            targetScale = maxFactor;
-        } else if (scaleFactor > zoomFactor) {
-            targetScale = zoomFactor;
-        } else if (scaleFactor < normalFactor) {
-            targetScale = normalFactor;
+            if (changed) {
+                updatePhotoRect();
+                applyMatrix();
+            }
+            updateState();
+            if (isRunning()) {
+                schedule();
+            }
         }
 
-        if (targetScale == -1) {
-            return false;
+        private float calInterpolate(long frameTime, long startTime, long duration) {
+            float elapsed = (float) (frameTime - startTime) / duration;
+            elapsed = Math.max(0f, Math.min(1f, elapsed));
+            return interpolator.getInterpolation(elapsed);
         }
 
-        point = calScaleFocus(targetScale, point);
-        ScaleRunnable scaleRunnable = new ScaleRunnable(targetScale, point);
-        postAnimation(scaleRunnable);
-        return true;
-    }
+        private void updateState() {
+            if (flinging) {
+                setState(State.FLING);
+            } else if (scaling) {
+                setState(State.SCALE);
+            } else if (translating) {
+                setState(State.TRANSLATE);
+            } else if (state == State.FLING || state == State.SCALE
+                    || state == State.TRANSLATE) {
+                setState(State.NONE);
+            }
+        }
 
-    /**
-     * get the focus point to scale the image
-     */
-    private PointF calScaleFocus(float targetScale, PointF point) {
-        // set default focus point
-        if (point == null) {
-            point = new PointF(viewWidth / 2, viewHeight / 2);
-        }
-
-        Matrix preMatrix = new Matrix(matrix);
-        float factor = targetScale / scaleFactor;
-        preMatrix.postScale(factor, factor, point.x, point.y);
-        float[] values = new float[9];
-        preMatrix.getValues(values);
-        float left = values[Matrix.MTRANS_X];
-        float top = values[Matrix.MTRANS_Y];
-        float right = left + drawableWidth * targetScale;
-        float bottom = top + drawableHeight * targetScale;
-        if (left <= 0 && top <= 0 && right >= viewWidth && bottom >= viewHeight) {
-            return point;
-        }
-
-        float targetWidth = drawableWidth * targetScale;
-        float targetHeight = drawableHeight * targetScale;
-        float drawableX = photoRect.left;
-        float drawableY = photoRect.top;
-        float targetLeft = left < 0 ? left : 0;
-        float targetTop = top < 0 ? top : 0;
-
-        // after scale, the photo will display within the view
-        if (targetScale <= fitScale) {
-            targetLeft = (viewWidth - targetWidth) / 2;
-            targetTop = (viewHeight - targetHeight) / 2;
-        } else {
-            if (targetWidth > viewWidth) {
-                targetLeft = right < viewWidth ? viewWidth - targetWidth : targetLeft;
+        @TargetApi(VERSION_CODES.JELLY_BEAN)
+        private void schedule() {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+            if (frameCallback != null) {
+                Choreographer.getInstance().postFrameCallback(frameCallback);
             } else {
-                targetLeft = (viewWidth - targetWidth) / 2;
+                postDelayed(this, FRAME_DELAY);
             }
-            if (targetHeight > viewHeight) {
-                targetTop = bottom < viewHeight ? targetTop = viewHeight - targetHeight : targetTop;
+        }
+
+        @TargetApi(VERSION_CODES.JELLY_BEAN)
+        private void unschedule() {
+            scheduled = false;
+            if (frameCallback != null) {
+                Choreographer.getInstance().removeFrameCallback(frameCallback);
             } else {
-                targetTop = (viewHeight - targetHeight) / 2;
+                removeCallbacks(this);
             }
         }
 
-        float px = (drawableX * targetWidth - targetLeft * photoRect.width())
-                / (targetWidth - photoRect.width());
-        float py = (drawableY * targetHeight - targetTop * photoRect.height())
-                / (targetHeight - photoRect.height());
-        Log.d(TAG, "scale focus px " + px + " py " + py);
-        point = new PointF(px, py);
-        return point;
+        /**
+         * the uptime is the clock of the frame time as well
+         */
+        private long currentTime() {
+            return SystemClock.uptimeMillis();
+        }
     }
 
     @TargetApi(VERSION_CODES.JELLY_BEAN)
-    private void postAnimation(Runnable runnable) {
-        if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN) {
-            postOnAnimation(runnable);
-        } else {
-            postDelayed(runnable, 1000 / 60);
+    private static class FrameCallbackCompat implements Choreographer.FrameCallback {
+
+        private PhotoAnimator animator;
+
+        FrameCallbackCompat(PhotoAnimator animator) {
+            this.animator = animator;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            animator.doFrame(frameTimeNanos / NANOS_PER_MS);
         }
     }
 
-    private class TransRunnable implements Runnable {
+    private void initMatrix() {
+        if (matrix == null) {
+            initPhotoView();
+        }
 
-        private static final float TRANSLATE_DURATION = 300;
+        Drawable drawable = getDrawable();
+        if (drawable == null) {
+            photoValid = false;
+            return;
+        }
 
-        private float px, py;
+        animator.cancel();
+        matrix.reset();
+        scaleFactor = 1;
+        photoRotation = 0;
+        state = State.NONE;
 
-        private float lastInterpolate;
+        drawableWidth = drawable.getIntrinsicWidth();
+        drawableHeight = drawable.getIntrinsicHeight();
+        if (DEBUG) {
+            Log.d(TAG, "drawableWidth " + drawableWidth + " drawableHeight " + drawableHeight);
+        }
+        if (drawableWidth <= 0 || drawableWidth <= 0) {
+            photoValid = false;
+            return;
+        }
 
-        private PhotoInter interpolator;
+        photoValid = true;
+        viewWidth = getMeasuredWidth();
+        viewHeight = getMeasuredHeight();
+        if (DEBUG) {
+            Log.d(TAG, "viewWidth " + viewWidth + " viewHeight " + viewHeight);
+        }
+        if (viewWidth == 0 || viewHeight == 0) {
+            return;
+        }
 
-        public TransRunnable(float px, float py) {
-            Log.d(TAG, "translate runnable px " + px + " py " + py);
-            this.interpolator = new PhotoInter(new LinearInterpolator(), TRANSLATE_DURATION);
-            this.px = px;
-            this.py = py;
-            this.lastInterpolate = 0;
-            setState(State.TRANSLATE);
+        updateFactors();
+        scaleMatrix(viewport.getNormalFactor(), 0, 0);
+        updatePhotoRect();
+
+        // update translate to fit view center
+        float px = (viewWidth - photoRect.width()) / 2;
+        float py = (viewHeight - photoRect.height()) / 2;
+        if (DEBUG) {
+            Log.d(TAG, "initMatrix px " + px + " py " + py);
         }
+        translateMatrix(px, py);
+        updatePhotoRect();
+        applyMatrix();
 
-        @Override
-        public void run() {
-            if (state != State.NONE && state != State.TRANSLATE) {
-                Log.d(TAG, "cancel translate for current state " + state);
-                return;
-            }
+        if (enableCrop) {
+            gridDetector.initRect();
+        }
+        if (pendingState != null) {
+            restoreViewport(pendingState);
+            pendingState = null;
+        }
+    }
 
-            final float interpolate = interpolator.calInterpolate();
-            Log.d(TAG, "interpolate " + interpolate);
-            final float delta = interpolate - lastInterpolate;
-            lastInterpolate = interpolate;
-            float deltaX = px * delta;
-            float deltaY = py * delta;
-            Log.d(TAG, "deltaX " + deltaX + " deltaY " + deltaY);
-            postTranslate(deltaX, deltaY);
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        SavedState savedState = new SavedState(super.onSaveInstanceState());
+        savedState.sourceUri = sourceUri;
+        savedState.region = tileDecoder != null;
+        if (!photoValid || viewWidth == 0 || viewHeight == 0 || !matrix.invert(inverseMatrix)) {
+            return savedState;
+        }
+
+        savedState.valid = true;
+        savedState.rotation = photoRotation;
+        savedState.zoom = scaleFactor / viewport.getNormalFactor();
+        focusValues[0] = viewWidth / 2f;
+        focusValues[1] = viewHeight / 2f;
+        inverseMatrix.mapPoints(focusValues);
+        savedState.centerX = focusValues[0] / drawableWidth;
+        savedState.centerY = focusValues[1] / drawableHeight;
+        if (enableCrop) {
+            RectF crop = new RectF(gridDetector.getRect());
+            inverseMatrix.mapRect(crop);
+            savedState.crop = new RectF(crop.left / drawableWidth, crop.top / drawableHeight,
+                    crop.right / drawableWidth, crop.bottom / drawableHeight);
+        }
+        return savedState;
+    }
+
+    /**
+     * the viewport is restored once the photo and the view size are known.
+     * if the photo is not set again, it is loaded from the saved uri at the
+     * resolution the restored zoom requires
+     */
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
 
-            if (interpolate < 1f) {
-                postAnimation(this);
+        SavedState savedState = (SavedState) state;
+        super.onRestoreInstanceState(savedState.getSuperState());
+        if (DEBUG) {
+            Log.d(TAG, "onRestoreInstanceState " + savedState);
+        }
+        Uri uri = savedState.sourceUri;
+        if (getDrawable() == null && loadTask == null && tileDecoder == null && uri != null) {
+            if (savedState.region) {
+                setImageRegion(uri);
             } else {
-                setState(State.NONE);
+                sourceUri = uri;
+                float factor = Math.min(Viewport.MAX_FACTOR, Math.max(1f, savedState.zoom));
+                startLoad(uri, factor, false);
             }
+        } else if (uri == null ? sourceUri != null : !uri.equals(sourceUri)) {
+            // another photo is displayed
+            return;
         }
 
+        if (!savedState.valid) {
+            return;
+        }
+        pendingState = savedState;
+        if (photoValid && viewWidth > 0 && viewHeight > 0) {
+            restoreViewport(savedState);
+            pendingState = null;
+        }
     }
 
-    private class PhotoInter {
-
-        private Interpolator inter;
-
-        private long time;
+    /**
+     * rotate and scale the fitted photo as saved, and move the saved center
+     * to the center of the view
+     */
+    private void restoreViewport(SavedState savedState) {
+        if (!savedState.valid) {
+            return;
+        }
 
-        private float duration;
+        animator.cancel();
+        photoRotation = savedState.rotation;
+        updateFactors();
+        float scale = savedState.zoom * viewport.getNormalFactor();
+        scale = Math.max(viewport.getMinFactor(), Math.min(viewport.getMaxFactor(), scale));
+        matrix.setScale(scale, scale);
+        matrix.postRotate(photoRotation);
+        scaleFactor = scale;
 
-        public PhotoInter(Interpolator inter, float duration) {
-            this.inter = inter;
-            this.time = System.currentTimeMillis();
-            this.duration = duration;
+        focusValues[0] = savedState.centerX * drawableWidth;
+        focusValues[1] = savedState.centerY * drawableHeight;
+        matrix.mapPoints(focusValues);
+        matrix.postTranslate(viewWidth / 2f - focusValues[0], viewHeight / 2f - focusValues[1]);
+        updatePhotoRect();
+        if (viewport.getAdjustTranslate(focusValues)) {
+            matrix.postTranslate(focusValues[0], focusValues[1]);
+            updatePhotoRect();
         }
+        applyMatrix();
 
-        public float calInterpolate() {
-            long currentTime = System.currentTimeMillis();
-            float elapsed = (currentTime - time) / duration;
-            elapsed = Math.min(1f, elapsed);
-            return inter.getInterpolation(elapsed);
+        if (enableCrop) {
+            gridDetector.initRect();
+            RectF crop = savedState.crop;
+            if (crop != null) {
+                RectF rect = new RectF(crop.left * drawableWidth, crop.top * drawableHeight,
+                        crop.right * drawableWidth, crop.bottom * drawableHeight);
+                matrix.mapRect(rect);
+                if (rect.intersect(0, 0, viewWidth, viewHeight)) {
+                    gridDetector.setRect(rect);
+                }
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "restoreViewport scale " + scaleFactor + " rotation " + photoRotation);
         }
-
     }
 
-    private class ScaleRunnable implements Runnable {
-
-        private static final float SCALE_DURATION = 300;
+    /**
+     * the viewport in normalized photo coordinates, the center is the photo
+     * point at the view center and the zoom is relative to the fit scale
+     */
+    static class SavedState extends BaseSavedState {
 
-        private float startScale, targetScale;
+        private Uri sourceUri;
 
-        private PhotoInter interpolator;
+        private boolean region;
 
-        private PointF foucsPoint;
+        private boolean valid;
 
-        ScaleRunnable(float targetScale, PointF focusPoint) {
-            setState(State.SCALE);
-            this.interpolator = new PhotoInter(new LinearInterpolator(), SCALE_DURATION);
-            this.startScale = scaleFactor;
-            this.targetScale = targetScale;
-            this.foucsPoint = focusPoint;
-        }
+        private float rotation;
 
-        @Override
-        public void run() {
-            float interpolate = interpolator.calInterpolate();
-            float deltaScale = calculateDeltaScale(interpolate);
-            Log.d(TAG, "deltaScale " + deltaScale + " interpolate " + interpolate);
-            postScale(deltaScale, foucsPoint.x, foucsPoint.y);
-            applyMatrix();
-
-            if (interpolate < 1f) {
-                postAnimation(this);
-            } else {
-                setState(State.NONE);
-            }
-        }
+        private float zoom;
 
-        private float calculateDeltaScale(float interpolate) {
-            float deltaScale = targetScale - startScale;
-            float nextScale = startScale + interpolate * deltaScale;
-            return nextScale / scaleFactor;
-        }
+        private float centerX, centerY;
 
-    }
+        private RectF crop;
 
-    private void initMatrix() {
-        if (matrix == null) {
-            initPhotoView();
+        SavedState(Parcelable superState) {
+            super(superState);
         }
 
-        Drawable drawable = getDrawable();
-        if (drawable == null) {
-            photoValid = false;
-            return;
+        private SavedState(Parcel in) {
+            super(in);
+            sourceUri = in.readParcelable(Uri.class.getClassLoader());
+            region = in.readInt() != 0;
+            valid = in.readInt() != 0;
+            rotation = in.readFloat();
+            zoom = in.readFloat();
+            centerX = in.readFloat();
+            centerY = in.readFloat();
+            if (in.readInt() != 0) {
+                crop = new RectF(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+            }
         }
 
-        matrix.reset();
-        scaleFactor = 1;
-        state = State.NONE;
-
-        drawableWidth = drawable.getIntrinsicWidth();
-        drawableHeight = drawable.getIntrinsicHeight();
-        Log.d(TAG, "drawableWidth " + drawableWidth + " drawableHeight " + drawableHeight);
-        if (drawableWidth <= 0 || drawableWidth <= 0) {
-            photoValid = false;
-            return;
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeParcelable(sourceUri, flags);
+            out.writeInt(region ? 1 : 0);
+            out.writeInt(valid ? 1 : 0);
+            out.writeFloat(rotation);
+            out.writeFloat(zoom);
+            out.writeFloat(centerX);
+            out.writeFloat(centerY);
+            out.writeInt(crop != null ? 1 : 0);
+            if (crop != null) {
+                out.writeFloat(crop.left);
+                out.writeFloat(crop.top);
+                out.writeFloat(crop.right);
+                out.writeFloat(crop.bottom);
+            }
         }
 
-        photoValid = true;
-        viewWidth = getMeasuredWidth();
-        viewHeight = getMeasuredHeight();
-        Log.d(TAG, "viewWidth " + viewWidth + " viewHeight " + viewHeight);
-        if (viewWidth == 0 || viewHeight == 0) {
-            return;
+        @Override
+        public String toString() {
+            return "SavedState uri " + sourceUri + " zoom " + zoom + " center " + centerX
+                    + "," + centerY + " rotation " + rotation + " crop " + crop;
         }
 
-        // update scale to fit view size
-        float scaleX = (float) viewWidth / drawableWidth;
-        float scaleY = (float) viewHeight / drawableHeight;
-        fitScale = scaleX > scaleY ? scaleY : scaleX;
-        if (fitSpace || fitScale < 1) {
-            normalFactor = fitScale * FIT_FACTOR;
-        } else {
-            normalFactor = 1;
-        }
-        minFactor = normalFactor * MIN_FACTOR;
-        zoomFactor = normalFactor * ZOOM_FACTOR;
-        maxFactor = normalFactor * MAX_FACTOR;
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
 
-        Log.d(TAG, "initMatrix minScale " + minFactor + " fitScale " + normalFactor + " maxScale " + maxFactor);
-        postScale(normalFactor);
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
 
-        // update translate to fit view center
-        float px = (viewWidth - photoRect.width()) / 2;
-        float py = (viewHeight - photoRect.height()) / 2;
-        Log.d(TAG, "initMatrix px " + px + " py " + py);
-        postTranslate(px, py);
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
 
-        if (enableCrop) {
-            gridDetector.initRect();
+    /**
+     * update the scale factors to fit the rotated photo into view
+     */
+    private void updateFactors() {
+        rotateMatrix.setRotate(photoRotation);
+        photoRect.set(0, 0, drawableWidth, drawableHeight);
+        rotateMatrix.mapRect(photoRect);
+        viewport.setViewSize(viewWidth, viewHeight);
+        viewport.updateFactors(photoRect.width(), photoRect.height(), fitSpace);
+        updatePhotoRect();
+
+        if (DEBUG) {
+            Log.d(TAG, "updateFactors minScale " + viewport.getMinFactor() + " fitScale "
+                    + viewport.getNormalFactor() + " maxScale " + viewport.getMaxFactor());
         }
     }
 
     private void postTranslate(float px, float py) {
-        Log.d(TAG, "postTranslate px " + px + " py " + py);
+        if (DEBUG) {
+            Log.d(TAG, "postTranslate px " + px + " py " + py);
+        }
         if (!photoValid) {
-            Log.d(TAG, "invalid photo content");
+            if (DEBUG) {
+                Log.d(TAG, "invalid photo content");
+            }
             return;
         }
-        matrix.postTranslate(px, py);
+        translateMatrix(px, py);
         updatePhotoRect();
         applyMatrix();
     }
 
-    private void postScale(float scale) {
-        Log.d(TAG, "postScale scale " + scale);
-        if (!photoValid) {
-            Log.d(TAG, "invalid photo content");
-            return;
+    /**
+     * update the matrix only, the caller should update the photo rect and
+     * apply the matrix
+     */
+    private void translateMatrix(float px, float py) {
+        if (diagnostics != null) {
+            diagnostics.onEvent(EVENT_TRANSLATE, px, py);
         }
+        matrix.postTranslate(px, py);
+    }
 
+    private void scaleMatrix(float scale, float px, float py) {
         scaleFactor *= scale;
-        matrix.postScale(scale, scale);
-        updatePhotoRect();
-        applyMatrix();
+        if (diagnostics != null) {
+            diagnostics.onEvent(EVENT_SCALE, scale, scaleFactor);
+        }
+        matrix.postScale(scale, scale, px, py);
     }
 
     private void postScale(float scale, float px, float py) {
-        Log.d(TAG, "postScale scale " + scale + " px " + px + " py " + py);
+        if (DEBUG) {
+            Log.d(TAG, "postScale scale " + scale + " px " + px + " py " + py);
+        }
         if (!photoValid) {
-            Log.d(TAG, "invalid photo content");
+            if (DEBUG) {
+                Log.d(TAG, "invalid photo content");
+            }
             return;
         }
-        scaleFactor *= scale;
-        matrix.postScale(scale, scale, px, py);
+        scaleMatrix(scale, px, py);
         updatePhotoRect();
         applyMatrix();
     }
 
+    /**
+     * rotate the photo around the view center, the rotation is part of the
+     * matrix so the current scale is kept and no bitmap is created
+     */
     public void postRotate(float degrees) {
-        Log.d(TAG, "postRotate degrees " + degrees);
+        if (DEBUG) {
+            Log.d(TAG, "postRotate degrees " + degrees);
+        }
         if (!photoValid) {
-            Log.d(TAG, "invlaid photo content!");
+            if (DEBUG) {
+                Log.d(TAG, "invlaid photo content!");
+            }
             return;
         }
-
-        Drawable drawable = getDrawable();
-        if (!(drawable instanceof BitmapDrawable)) {
+        if (state != State.NONE) {
+            if (DEBUG) {
+                Log.d(TAG, "cancel rotate for current state " + state);
+            }
             return;
         }
 
-        Bitmap origin = ((BitmapDrawable) drawable).getBitmap();
-        Matrix m = new Matrix();
-        m.postRotate(degrees, drawableWidth / 2, drawableHeight / 2);
-        Bitmap bitmap = Bitmap.createBitmap(origin, 0, 0, drawableWidth, drawableHeight, m, true);
-        setImageBitmap(bitmap);
+        photoRotation = (photoRotation + degrees) % 360;
+        matrix.postRotate(degrees, viewWidth / 2f, viewHeight / 2f);
+        updateFactors();
+        applyMatrix();
+
+        if (adjustToScale(viewWidth / 2f, viewHeight / 2f)) {
+            if (DEBUG) {
+                Log.d(TAG, "adjustToScale");
+            }
+        } else if (adjustToBounds()) {
+            if (DEBUG) {
+                Log.d(TAG, "adjustToBounds");
+            }
+        }
+        if (enableCrop) {
+            gridDetector.initRect();
+        }
     }
 
+    public float getPhotoRotation() {
+        return photoRotation;
+    }
+
+    /**
+     * update the bounds of the photo in view, the bounds of a rotated photo
+     * is the bounding rect of it
+     */
     private void updatePhotoRect() {
-        matrix.getValues(matrixValues);
-        float left = matrixValues[Matrix.MTRANS_X];
-        float top = matrixValues[Matrix.MTRANS_Y];
-        float width = scaleFactor * drawableWidth;
-        float height = scaleFactor * drawableHeight;
-        photoRect.set(left, top, left + width, top + height);
+        photoRect.set(0, 0, drawableWidth, drawableHeight);
+        matrix.mapRect(photoRect);
+        viewport.setPhoto(photoRect.left, photoRect.top, photoRect.right, photoRect.bottom,
+                scaleFactor);
     }
 
-    private class DragDetector {
+    /**
+     * one state machine for the crop drag, the drag, the fling, the pinch and
+     * the taps. each event is parsed once, the crop drag is decided at the
+     * first down and a second pointer turns a drag into a pinch
+     */
+    private class GestureEngine {
+
+        private static final int MODE_NONE = 0;
+
+        private static final int MODE_DRAG = 1;
+
+        private static final int MODE_SCALE = 2;
+
+        private static final int MODE_CROP = 3;
 
         private SimpleDragListener dragListener;
 
+        private int mode;
+
+        private int activePointerId;
+
+        private float downX, downY;
+
         private float lastX, lastY;
 
-        public DragDetector(SimpleDragListener listener) {
+        private float lastSpan;
+
+        private float focusX, focusY;
+
+        private boolean overZoom;
+
+        private boolean inTapRegion;
+
+        private boolean longPressed;
+
+        private boolean doubleTapped;
+
+        private boolean tapPending;
+
+        private long lastTapTime;
+
+        private float lastTapX, lastTapY;
+
+        private VelocityEstimator velocityEstimator;
+
+        private int touchSlopSquare;
+
+        private int doubleTapSlopSquare;
+
+        private int minFlingVelocity;
+
+        private int maxFlingVelocity;
+
+        private Runnable longPressRunnable;
+
+        private Runnable tapRunnable;
+
+        GestureEngine(Context context, SimpleDragListener listener) {
             this.dragListener = listener;
+            ViewConfiguration configuration = ViewConfiguration.get(context);
+            int touchSlop = configuration.getScaledTouchSlop();
+            int doubleTapSlop = configuration.getScaledDoubleTapSlop();
+            this.touchSlopSquare = touchSlop * touchSlop;
+            this.doubleTapSlopSquare = doubleTapSlop * doubleTapSlop;
+            this.minFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+            this.maxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+            this.velocityEstimator = new VelocityEstimator();
+            this.longPressRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+                    onLongPress();
+                }
+            };
+            this.tapRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+                    onSingleTapConfirmed();
+                }
+            };
+        }
+
+        public void onTouchEvent(MotionEvent event) {
+            int action = event.getAction() & MotionEvent.ACTION_MASK;
+            switch (action) {
+                case MotionEvent.ACTION_DOWN:
+                    onDown(event);
+                    break;
+                case MotionEvent.ACTION_POINTER_DOWN:
+                    onPointerDown(event);
+                    break;
+                case MotionEvent.ACTION_MOVE:
+                    onMove(event);
+                    break;
+                case MotionEvent.ACTION_POINTER_UP:
+                    onPointerUp(event);
+                    break;
+                case MotionEvent.ACTION_UP:
+                    onUp(event);
+                    break;
+                case MotionEvent.ACTION_CANCEL:
+                    onCancel();
+                    break;
+                default:
+                    break;
+            }
         }
 
-        public boolean onTouchEvent(MotionEvent event) {
-            if (dragListener == null) {
-                return false;
+        private void onDown(MotionEvent event) {
+            float x = event.getX();
+            float y = event.getY();
+            velocityEstimator.clear();
+            mode = MODE_NONE;
+            if (enableCrop && gridDetector.startDrag(x, y)) {
+                mode = MODE_CROP;
+                return;
+            }
+            if (!enableScale) {
+                return;
             }
 
-            if (state != State.NONE && state != State.DRAG) {
-                Log.d(TAG, "current state " + state);
-                return false;
+            doubleTapped = false;
+            if (tapPending && event.getEventTime() - lastTapTime <= ViewConfiguration.getDoubleTapTimeout()
+                    && distanceSquare(x, y, lastTapX, lastTapY) < doubleTapSlopSquare) {
+                removeCallbacks(tapRunnable);
+                tapPending = false;
+                doubleTapped = true;
+                onDoubleTap(x, y);
             }
 
-            int action = event.getAction();
-            if (action == MotionEvent.ACTION_DOWN) {
-                lastX = event.getX();
-                lastY = event.getY();
+            activePointerId = event.getPointerId(0);
+            downX = lastX = x;
+            downY = lastY = y;
+            velocityEstimator.addSample(x, y, event.getEventTime());
+            inTapRegion = true;
+            longPressed = false;
+            removeCallbacks(longPressRunnable);
+            postDelayed(longPressRunnable,
+                    ViewConfiguration.getTapTimeout() + ViewConfiguration.getLongPressTimeout());
+
+            if (state == State.NONE || state == State.DRAG) {
+                mode = MODE_DRAG;
                 dragListener.onDragBegin();
-            } else if (action == MotionEvent.ACTION_MOVE) {
-                float deltaX = event.getX() - lastX;
-                float deltaY = event.getY() - lastY;
-                lastX = event.getX();
-                lastY = event.getY();
-                if (deltaX == 0 && deltaY == 0) {
-                    return false;
+            }
+        }
+
+        private void onPointerDown(MotionEvent event) {
+            leaveTapRegion();
+            if (mode == MODE_CROP) {
+                endCrop();
+                mode = MODE_NONE;
+            }
+            if (!enableScale || event.getPointerCount() < 2) {
+                return;
+            }
+            if (mode == MODE_SCALE) {
+                updateSpan(event, -1);
+                return;
+            }
+
+            // the drag is taken over by the pinch
+            mode = MODE_SCALE;
+            updateSpan(event, -1);
+            overZoom = scaleFactor >= viewport.getZoomFactor();
+            if (DEBUG) {
+                Log.d(TAG, "onScaleBegin overZoom " + overZoom);
+            }
+            setState(State.SCALE);
+        }
+
+        /**
+         * the samples batched in the event are folded into one delta from
+         * the newest sample to the last one handled, and only the velocity
+         * reads the samples between them
+         */
+        private void onMove(MotionEvent event) {
+            if (mode == MODE_CROP) {
+                if (enableCrop) {
+                    gridDetector.dragTo(event.getX(), event.getY());
+                }
+            } else if (mode == MODE_DRAG) {
+                int index = event.findPointerIndex(activePointerId);
+                if (index < 0) {
+                    return;
+                }
+                float x = event.getX(index);
+                float y = event.getY(index);
+                velocityEstimator.addMovement(event, index);
+                if (inTapRegion && distanceSquare(x, y, downX, downY) > touchSlopSquare) {
+                    leaveTapRegion();
+                }
+                float deltaX = x - lastX;
+                float deltaY = y - lastY;
+                lastX = x;
+                lastY = y;
+                if (deltaX != 0 || deltaY != 0) {
+                    dragListener.onDrag(deltaX, deltaY);
+                }
+            } else if (mode == MODE_SCALE) {
+                float span = lastSpan;
+                updateSpan(event, -1);
+                if (span > 0 && lastSpan > 0) {
+                    onScale(lastSpan / span, focusX, focusY);
+                }
+            }
+        }
+
+        /**
+         * a second pointer always turns the drag into a pinch, so only the
+         * pinch is left with fewer pointers here
+         */
+        private void onPointerUp(MotionEvent event) {
+            if (mode != MODE_SCALE) {
+                return;
+            }
+            int index = event.getActionIndex();
+            updateSpan(event, index);
+            if (event.getPointerCount() - 1 < 2) {
+                resumeDrag(event, index == 0 ? 1 : 0);
+            }
+        }
+
+        /**
+         * the pointer left by the pinch drags on, the photo is settled when
+         * the drag ends
+         */
+        private void resumeDrag(MotionEvent event, int index) {
+            if (DEBUG) {
+                Log.d(TAG, "onScaleEnd resume drag");
+            }
+            overZoom = false;
+            mode = MODE_DRAG;
+            activePointerId = event.getPointerId(index);
+            downX = lastX = event.getX(index);
+            downY = lastY = event.getY(index);
+            velocityEstimator.clear();
+            velocityEstimator.addSample(lastX, lastY, event.getEventTime());
+            dragListener.onDragBegin();
+        }
+
+        private void onUp(MotionEvent event) {
+            removeCallbacks(longPressRunnable);
+            if (mode == MODE_CROP) {
+                endCrop();
+            } else if (mode == MODE_DRAG) {
+                int index = event.findPointerIndex(activePointerId);
+                if (index >= 0) {
+                    velocityEstimator.addMovement(event, index);
+                }
+                velocityEstimator.computeVelocity(maxFlingVelocity);
+                float velocityX = velocityEstimator.getVelocityX();
+                float velocityY = velocityEstimator.getVelocityY();
+                if (!inTapRegion && (Math.abs(velocityX) > minFlingVelocity
+                        || Math.abs(velocityY) > minFlingVelocity)) {
+                    onFling(velocityX, velocityY);
                 }
-                dragListener.onDrag(deltaX, deltaY);
-            } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP) {
                 dragListener.onDragEnd();
-                lastX = 0;
-                lastY = 0;
+            } else if (mode == MODE_SCALE) {
+                onScaleEnd(focusX, focusY);
             }
-            return true;
+
+            if (enableScale && mode != MODE_CROP && inTapRegion && !longPressed && !doubleTapped) {
+                tapPending = true;
+                lastTapTime = event.getEventTime();
+                lastTapX = downX;
+                lastTapY = downY;
+                removeCallbacks(tapRunnable);
+                postDelayed(tapRunnable, ViewConfiguration.getDoubleTapTimeout());
+            }
+            mode = MODE_NONE;
+            velocityEstimator.clear();
         }
-    }
 
-    private class FlingRunnable implements Runnable {
+        private void onCancel() {
+            removeCallbacks(longPressRunnable);
+            removeCallbacks(tapRunnable);
+            tapPending = false;
+            if (mode == MODE_CROP) {
+                endCrop();
+            } else if (mode == MODE_DRAG) {
+                dragListener.onDragEnd();
+            } else if (mode == MODE_SCALE) {
+                onScaleEnd(focusX, focusY);
+            }
+            mode = MODE_NONE;
+            velocityEstimator.clear();
+        }
+
+        /**
+         * update the focus and the average distance of the pointers to it
+         *
+         * @param skipIndex the index of the pointer going up, or -1
+         */
+        private void updateSpan(MotionEvent event, int skipIndex) {
+            int count = event.getPointerCount();
+            int pointers = skipIndex < 0 ? count : count - 1;
+            if (pointers <= 0) {
+                lastSpan = 0;
+                return;
+            }
 
-        private OverScroller scroller;
+            float sumX = 0;
+            float sumY = 0;
+            for (int i = 0; i < count; i++) {
+                if (i != skipIndex) {
+                    sumX += event.getX(i);
+                    sumY += event.getY(i);
+                }
+            }
+            focusX = sumX / pointers;
+            focusY = sumY / pointers;
+
+            float devSumX = 0;
+            float devSumY = 0;
+            for (int i = 0; i < count; i++) {
+                if (i != skipIndex) {
+                    devSumX += Math.abs(event.getX(i) - focusX);
+                    devSumY += Math.abs(event.getY(i) - focusY);
+                }
+            }
+            float spanX = devSumX / pointers * 2;
+            float spanY = devSumY / pointers * 2;
+            lastSpan = (float) Math.sqrt(spanX * spanX + spanY * spanY);
+        }
 
-        private int currX, currY;
+        private void endCrop() {
+            if (enableCrop) {
+                gridDetector.endDrag();
+            }
+        }
 
-        FlingRunnable(int velX, int velY) {
-            Log.d(TAG, "fling velX " + velX + " velY " + velY);
-            setState(State.FLING);
-            scroller = new OverScroller(getContext());
+        private void leaveTapRegion() {
+            inTapRegion = false;
+            removeCallbacks(longPressRunnable);
+        }
 
-            int startX = (int) photoRect.left;
-            int startY = (int) photoRect.top;
-            int minX, maxX, minY, maxY;
+        private float distanceSquare(float x0, float y0, float x1, float y1) {
+            float dx = x0 - x1;
+            float dy = y0 - y1;
+            return dx * dx + dy * dy;
+        }
 
-            float photoWidth = photoRect.width();
-            float photoHeight = photoRect.height();
-            if (photoWidth > viewWidth) {
-                maxX = 0;
-                minX = viewWidth - (int) photoWidth;
-            } else {
-                minX = maxX = startX;
+        private void onSingleTapConfirmed() {
+            if (DEBUG) {
+                Log.d(TAG, "onSingleTapConfirmed");
+            }
+            tapPending = false;
+            if (onClickListener != null) {
+                onClickListener.onClick(PhotoView.this);
             }
+        }
 
-            if (photoHeight > viewHeight) {
-                maxY = 0;
-                minY = viewHeight - (int) photoHeight;
-            } else {
-                minY = maxY = startY;
+        private void onLongPress() {
+            if (DEBUG) {
+                Log.d(TAG, "onLongPress");
             }
+            longPressed = true;
+            if (onLongClickListener != null) {
+                onLongClickListener.onLongClick(PhotoView.this);
+            }
+        }
 
-            scroller.fling(startX, startY, velX, velY,
-                    minX, maxX, minY, maxY, 1, 1);
-            currX = startX;
-            currY = startY;
+        private void onFling(float velocityX, float velocityY) {
+            if (DEBUG) {
+                Log.d(TAG, "onFling vx " + velocityX + " vy " + velocityY + " state " + state);
+            }
+            if (state == State.NONE || state == State.FLING || state == State.DRAG) {
+                animator.startFling((int) velocityX, (int) velocityY);
+            } else {
+                if (DEBUG) {
+                    Log.d(TAG, "cancel fling for current state " + state);
+                }
+            }
         }
 
-        public void cancelFling() {
-            Log.d(TAG, "cancelFling");
-            if (scroller != null) {
-                setState(State.NONE);
-                scroller.forceFinished(true);
+        private void onDoubleTap(float x, float y) {
+            if (state != State.NONE) {
+                return;
             }
+            float targetScale = viewport.getToggleScale();
+            if (DEBUG) {
+                Log.d(TAG, "onDoubleTap targetScale " + targetScale);
+            }
+            viewport.calScaleFocus(targetScale, x, y, focusValues);
+            animator.startScale(targetScale, focusValues[0], focusValues[1]);
         }
 
-        @Override
-        public void run() {
-            if (scroller == null || scroller.isFinished() || !scroller.computeScrollOffset()) {
-                if (state == State.FLING) {
-                    setState(State.NONE);
+        private void onScale(float factor, float px, float py) {
+            if (state != State.NONE && state != State.SCALE) {
+                if (DEBUG) {
+                    Log.d(TAG, "cancel scale for current state " + state);
                 }
-                scroller = null;
+                return;
+            }
+            factor = viewport.clampScale(factor, overZoom);
+            if (DEBUG) {
+                Log.d(TAG, "onScale current " + scaleFactor + " factor " + factor + " px " + px + " py " + py);
+            }
+            postScale(factor, px, py);
+        }
+
+        private void onScaleEnd(float px, float py) {
+            if (DEBUG) {
+                Log.d(TAG, "onScaleEnd");
+            }
+            overZoom = false;
+            if (state != State.SCALE) {
                 return;
             }
 
-            int newX = scroller.getCurrX();
-            int newY = scroller.getCurrY();
-            int px = newX - currX;
-            int py = newY - currY;
-            currX = newX;
-            currY = newY;
-            Log.d(TAG, "fling px " + px + " py " + py);
-            postTranslate(px, py);
-            postAnimation(this);
+            setState(State.NONE);
+            if (adjustToScale(px, py)) {
+                if (DEBUG) {
+                    Log.d(TAG, "adjustToScale");
+                }
+            } else if (adjustToBounds()) {
+                if (DEBUG) {
+                    Log.d(TAG, "adjustToBounds");
+                }
+            }
         }
     }
 
     @Override
     public boolean canScrollHorizontally(int direction) {
         if (!photoValid) {
-            Log.d(TAG, "canScrollHorizontally " + false);
+            if (DEBUG) {
+                Log.d(TAG, "canScrollHorizontally " + false);
+            }
             return false;
         }
 
@@ -1165,7 +2602,9 @@ public class PhotoView extends ImageView {
         } else if (direction > 0 && horizontalTranslate + photoWidth <= viewWidth) {
             canScroll = false;
         }
-        Log.d(TAG, "canScrollHorizontally " + canScroll);
+        if (DEBUG) {
+            Log.d(TAG, "canScrollHorizontally " + canScroll);
+        }
         return canScroll;
     }
 
@@ -1187,7 +2626,7 @@ public class PhotoView extends ImageView {
     }
 
     public static boolean isPowerOfTwo(int num) {
-        return num > 0 & (num & (num - 1)) == 0;
+        return CropGrid.isPowerOfTwo(num);
     }
 
 }
@@ -0,0 +1,102 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * choose the pixel format of the decoded photos. opaque sources are decoded
+ * as RGB_565 under memory pressure, which halves their memory, images which
+ * may have alpha keep ARGB_8888
+ */
+final class PixelPolicy {
+
+    /**
+     * the memory is regarded as low for a while after a trim memory callback
+     */
+    private static final long PRESSURE_DURATION = 60 * 1000;
+
+    private static final int ARGB_BYTES = 4;
+
+    private static volatile long pressureTime = -PRESSURE_DURATION;
+
+    private static final AtomicInteger PRESSURE_COUNT = new AtomicInteger();
+
+    private PixelPolicy() {
+    }
+
+    /**
+     * @param policy   one of {@link PhotoView#PIXEL_AUTO},
+     *                 {@link PhotoView#PIXEL_QUALITY} and
+     *                 {@link PhotoView#PIXEL_MEMORY}
+     * @param mimeType the mime type of the source from the bounds decode
+     */
+    public static Bitmap.Config chooseConfig(int policy, String mimeType, int width, int height) {
+        if (policy == PhotoView.PIXEL_QUALITY || !isOpaque(mimeType)) {
+            return Bitmap.Config.ARGB_8888;
+        }
+        if (policy == PhotoView.PIXEL_MEMORY) {
+            return Bitmap.Config.RGB_565;
+        }
+        long bytes = (long) width * height * ARGB_BYTES;
+        return isMemoryLow(bytes) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * whether a bitmap decoded in the config may be shown under the policy,
+     * the quality policy takes ARGB_8888 only
+     */
+    public static boolean accepts(int policy, Bitmap.Config config) {
+        return policy != PhotoView.PIXEL_QUALITY || config == Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * only jpeg has no alpha channel for sure
+     */
+    public static boolean isOpaque(String mimeType) {
+        return "image/jpeg".equals(mimeType);
+    }
+
+    /**
+     * the config a bitmap derived from the source should use, the area out
+     * of the source is transparent if it is not rotated by right angles
+     */
+    public static Bitmap.Config configOf(Bitmap source, float rotation) {
+        Bitmap.Config config = source == null ? null : source.getConfig();
+        if (config == null || config == Bitmap.Config.ALPHA_8 || rotation % 90 != 0) {
+            return Bitmap.Config.ARGB_8888;
+        }
+        return config;
+    }
+
+    /**
+     * the bitmap would take more than half of the heap left, or the system
+     * asked to trim memory recently
+     */
+    public static boolean isMemoryLow(long bytes) {
+        if (SystemClock.uptimeMillis() - pressureTime < PRESSURE_DURATION) {
+            return true;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return bytes * 2 > available;
+    }
+
+    public static void notifyMemoryPressure() {
+        pressureTime = SystemClock.uptimeMillis();
+        PRESSURE_COUNT.incrementAndGet();
+    }
+
+    /**
+     * the times of the memory pressure, a change tells the memory held for
+     * speed should be dropped
+     */
+    public static int getPressureCount() {
+        return PRESSURE_COUNT.get();
+    }
+}
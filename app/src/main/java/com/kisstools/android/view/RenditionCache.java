@@ -0,0 +1,314 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * a disk cache of the view sized renditions of the photos, so a photo is
+ * shown sharp at the fit scale without decoding the original. the pixels
+ * are stored raw and read back through memory mapped io, the files are
+ * evicted in lru order over the size cap. the renditions are kept in the
+ * pixel format they were decoded in, the loader checks it against the pixel
+ * policy of the view
+ *
+ * <pre>
+ * int magic, int width, int height, int config code, then the pixels
+ * </pre>
+ */
+final class RenditionCache {
+
+    public static final String TAG = "RenditionCache";
+
+    private static final String DIRECTORY = "photo_renditions";
+
+    /**
+     * changed with the format, the files of an older format are dropped
+     */
+    private static final int MAGIC = 0x50565244;
+
+    private static final int CONFIG_ARGB_8888 = 1;
+
+    private static final int CONFIG_RGB_565 = 2;
+
+    private static final int CONFIG_ALPHA_8 = 3;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static RenditionCache instance;
+
+    private File directory;
+
+    private long maxSize;
+
+    private long size;
+
+    /**
+     * file name to file size in access order, loaded on first use
+     */
+    private LinkedHashMap<String, Long> files;
+
+    public static synchronized RenditionCache getInstance(Context context) {
+        if (instance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY);
+            instance = new RenditionCache(directory, DEFAULT_MAX_SIZE);
+        }
+        return instance;
+    }
+
+    private RenditionCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * the key changes with the modified time of the source, so a rendition
+     * of a changed photo is not used
+     */
+    public static String getKey(Context context, Uri uri, int width, int height) {
+        return uri + "@" + width + "x" + height + "#" + getModifiedTime(context, uri);
+    }
+
+    private static long getModifiedTime(Context context, Uri uri) {
+        String scheme = uri.getScheme();
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            return new File(uri.getPath()).lastModified();
+        } else if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)) {
+            try {
+                return context.getPackageManager()
+                        .getPackageInfo(uri.getAuthority(), 0).lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                return 0;
+            }
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri,
+                    new String[]{MediaStore.MediaColumns.DATE_MODIFIED}, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            // the provider has no modified time
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    public synchronized Bitmap get(String key) {
+        loadFiles();
+        String name = getFileName(key);
+        if (files.get(name) == null) {
+            return null;
+        }
+
+        File file = new File(directory, name);
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("bad rendition " + file);
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            Bitmap.Config config = decodeConfig(buffer.getInt());
+            if (width <= 0 || height <= 0 || config == null
+                    || buffer.remaining() < (long) width * height * getPixelBytes(config)) {
+                throw new IOException("bad rendition " + file);
+            }
+            Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+            bitmap.copyPixelsFromBuffer(buffer);
+            file.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        } catch (IOException e) {
+            Log.w(TAG, "read " + key + " failed", e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "read " + key + " failed", e);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "read " + key + " out of memory", e);
+            return null;
+        } finally {
+            DecodeUtils.closeQuietly(input);
+        }
+        remove(name);
+        return null;
+    }
+
+    public synchronized void put(String key, Bitmap bitmap) {
+        int code = encodeConfig(bitmap.getConfig());
+        if (code == 0) {
+            return;
+        }
+        loadFiles();
+        String name = getFileName(key);
+        File temp = new File(directory, name + ".tmp");
+        int byteCount = bitmap.getRowBytes() * bitmap.getHeight();
+        long length = HEADER_SIZE + byteCount;
+        RandomAccessFile output = null;
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("can not create " + directory);
+            }
+            output = new RandomAccessFile(temp, "rw");
+            output.setLength(length);
+            MappedByteBuffer buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(MAGIC);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(code);
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.force();
+        } catch (IOException e) {
+            Log.w(TAG, "write " + key + " failed", e);
+            temp.delete();
+            return;
+        } finally {
+            DecodeUtils.closeQuietly(output);
+        }
+
+        remove(name);
+        File file = new File(directory, name);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        files.put(name, length);
+        size += length;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * the code written for the config, 0 if the config is not stored
+     */
+    private static int encodeConfig(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return CONFIG_ARGB_8888;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return CONFIG_RGB_565;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return CONFIG_ALPHA_8;
+        }
+        return 0;
+    }
+
+    /**
+     * the config of the code read, null if the code is unknown
+     */
+    private static Bitmap.Config decodeConfig(int code) {
+        switch (code) {
+            case CONFIG_ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+            case CONFIG_RGB_565:
+                return Bitmap.Config.RGB_565;
+            case CONFIG_ALPHA_8:
+                return Bitmap.Config.ALPHA_8;
+            default:
+                return null;
+        }
+    }
+
+    private static int getPixelBytes(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        }
+        return config == Bitmap.Config.RGB_565 ? 2 : 1;
+    }
+
+    private void remove(String name) {
+        Long length = files.remove(name);
+        if (length != null) {
+            size -= length;
+            new File(directory, name).delete();
+        }
+    }
+
+    private void trimToSize(long targetSize) {
+        Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+        while (size > targetSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            size -= entry.getValue();
+            new File(directory, entry.getKey()).delete();
+            if (PhotoView.DEBUG) {
+                Log.d(TAG, "evict " + entry.getKey() + " size " + size);
+            }
+        }
+    }
+
+    /**
+     * build the index from the files, the access order is restored from the
+     * modified time which is updated on every read
+     */
+    private void loadFiles() {
+        if (files != null) {
+            return;
+        }
+        files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        File[] list = directory.listFiles();
+        if (list == null) {
+            return;
+        }
+        Arrays.sort(list, new Comparator<File>() {
+
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (File file : list) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            files.put(file.getName(), file.length());
+            size += file.length();
+        }
+    }
+
+    private static String getFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes());
+            StringBuilder builder = new StringBuilder();
+            for (byte b : bytes) {
+                builder.append(Integer.toHexString((b & 0xF0) >> 4));
+                builder.append(Integer.toHexString(b & 0x0F));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * decode the visible part of a large image tile by tile, the low resolution
+ * base image is drawn below them. the tiles reserve their bytes in the
+ * {@link BitmapCache}, the tiles drawn least recently are evicted to make
+ * room for a new one
+ */
+@TargetApi(VERSION_CODES.GINGERBREAD_MR1)
+class TileDecoder {
+
+    public static final String TAG = "TileDecoder";
+
+    /**
+     * size of a decoded tile in pixels
+     */
+    private static final int TILE_SIZE = 512;
+
+    /**
+     * one thread decodes the tiles of all the decoders, the tasks of a
+     * decoder run in order so its region decoder is recycled after them
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    public static interface Callback {
+
+        public void onBaseLoaded(Bitmap base);
+
+        public void onTileLoaded();
+
+        public void onLoadFailed();
+    }
+
+    private Context context;
+
+    private Uri uri;
+
+    private Callback callback;
+
+    private Handler handler;
+
+    private BitmapRegionDecoder decoder;
+
+    private int sourceWidth;
+
+    private int sourceHeight;
+
+    private static class Tile {
+
+        private Bitmap bitmap;
+
+        private int size;
+
+        /**
+         * the draw in which the tile was drawn last
+         */
+        private long drawCount;
+    }
+
+    private BitmapCache cache;
+
+    /**
+     * the decoded tiles by {@link #tileKey(int, int, int)}, primitive keys so
+     * the draw does not box them
+     */
+    private LongSparseArray<Tile> tiles;
+
+    /**
+     * true for the tiles being decoded, false for the tiles refused for the
+     * budget, which are not requested again until the wanted tiles change
+     */
+    private LongSparseArray<Boolean> pendingTiles;
+
+    private long drawCount;
+
+    private Paint tilePaint;
+
+    private RectF tileRect;
+
+    private volatile boolean released;
+
+    /**
+     * the config of the base image and the tiles
+     */
+    private Bitmap.Config config;
+
+    private volatile int wantedSample;
+
+    private volatile int wantedLeft, wantedTop, wantedRight, wantedBottom;
+
+    public TileDecoder(Context context, Uri uri, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.uri = uri;
+        this.callback = callback;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.cache = BitmapCache.getInstance(context);
+        this.tiles = new LongSparseArray<Tile>();
+        this.pendingTiles = new LongSparseArray<Boolean>();
+        this.tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        this.tileRect = new RectF();
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * open the region decoder and decode the base image, which is not
+     * smaller than the required size
+     *
+     * @param pixelPolicy see {@link PhotoView#setPixelPolicy(int)}
+     */
+    public void open(final int reqWidth, final int reqHeight, final int pixelPolicy) {
+        EXECUTOR.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Bitmap base = decodeBase(reqWidth, reqHeight, pixelPolicy);
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (released) {
+                            return;
+                        }
+                        if (base == null) {
+                            callback.onLoadFailed();
+                        } else {
+                            callback.onBaseLoaded(base);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap decodeBase(int reqWidth, int reqHeight, int pixelPolicy) {
+        InputStream stream = null;
+        try {
+            // the region decoder does not tell the mime type
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            stream = DecodeUtils.openStream(context, uri);
+            BitmapFactory.decodeStream(stream, null, bounds);
+            DecodeUtils.closeQuietly(stream);
+
+            stream = DecodeUtils.openStream(context, uri);
+            decoder = BitmapRegionDecoder.newInstance(stream, false);
+            sourceWidth = decoder.getWidth();
+            sourceHeight = decoder.getHeight();
+            if (PhotoView.DEBUG) {
+                Log.d(TAG, "open " + uri + " width " + sourceWidth + " height " + sourceHeight);
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = DecodeUtils.calculateSampleSize(sourceWidth, sourceHeight,
+                    reqWidth, reqHeight);
+            config = PixelPolicy.chooseConfig(pixelPolicy, bounds.outMimeType,
+                    sourceWidth / options.inSampleSize, sourceHeight / options.inSampleSize);
+            options.inPreferredConfig = config;
+            Rect region = new Rect(0, 0, sourceWidth, sourceHeight);
+            return decoder.decodeRegion(region, options);
+        } catch (IOException e) {
+            Log.w(TAG, "open " + uri + " failed", e);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "decode base of " + uri + " out of memory", e);
+        } finally {
+            DecodeUtils.closeQuietly(stream);
+        }
+        return null;
+    }
+
+    /**
+     * draw the cached tiles intersecting the visible rect, the canvas is
+     * expected to be in source image coordinates. missing tiles are decoded
+     * in background and reported through {@link Callback#onTileLoaded()}
+     */
+    public void draw(Canvas canvas, RectF visible, int sampleSize) {
+        if (decoder == null || released) {
+            return;
+        }
+
+        int tileSize = TILE_SIZE * sampleSize;
+        int cols = (sourceWidth + tileSize - 1) / tileSize;
+        int rows = (sourceHeight + tileSize - 1) / tileSize;
+        int left = Math.max(0, (int) (visible.left / tileSize));
+        int top = Math.max(0, (int) (visible.top / tileSize));
+        int right = Math.min(cols, (int) Math.ceil(visible.right / tileSize));
+        int bottom = Math.min(rows, (int) Math.ceil(visible.bottom / tileSize));
+
+        if (sampleSize != wantedSample || left != wantedLeft || top != wantedTop
+                || right != wantedRight || bottom != wantedBottom) {
+            clearRefusedTiles();
+        }
+        wantedSample = sampleSize;
+        wantedLeft = left;
+        wantedTop = top;
+        wantedRight = right;
+        wantedBottom = bottom;
+
+        drawCount++;
+        for (int row = top; row < bottom; row++) {
+            for (int col = left; col < right; col++) {
+                long key = tileKey(sampleSize, row, col);
+                Tile tile = tiles.get(key);
+                if (tile == null) {
+                    requestTile(key, sampleSize, row, col);
+                    continue;
+                }
+                tile.drawCount = drawCount;
+                tileRect.set(col * tileSize, row * tileSize,
+                        Math.min(sourceWidth, (col + 1) * tileSize),
+                        Math.min(sourceHeight, (row + 1) * tileSize));
+                canvas.drawBitmap(tile.bitmap, null, tileRect, tilePaint);
+            }
+        }
+    }
+
+    /**
+     * the visible area is covered by the base image, stop decoding tiles
+     */
+    public void cancelTiles() {
+        wantedSample = 0;
+    }
+
+    private void requestTile(final long key, final int sampleSize, final int row, final int col) {
+        if (pendingTiles.indexOfKey(key) >= 0) {
+            return;
+        }
+        pendingTiles.put(key, Boolean.TRUE);
+
+        EXECUTOR.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Bitmap tile = isWanted(sampleSize, row, col) ? decodeTile(sampleSize, row, col) : null;
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (released) {
+                            return;
+                        }
+                        if (tile != null && !addTile(key, tile)) {
+                            pendingTiles.put(key, Boolean.FALSE);
+                            return;
+                        }
+                        pendingTiles.remove(key);
+                        if (tile != null) {
+                            callback.onTileLoaded();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * reserve the bytes of the tile, the tiles not drawn by the last draw
+     * are evicted to make room. false if there is no room
+     */
+    private boolean addTile(long key, Bitmap bitmap) {
+        int size = BitmapCache.getByteCount(bitmap);
+        while (!cache.reserve(size)) {
+            if (!evictTile()) {
+                if (PhotoView.DEBUG) {
+                    Log.d(TAG, "tile refused for the budget");
+                }
+                return false;
+            }
+        }
+        Tile tile = new Tile();
+        tile.bitmap = bitmap;
+        tile.size = size;
+        tile.drawCount = drawCount;
+        tiles.put(key, tile);
+        return true;
+    }
+
+    /**
+     * evict the tile drawn least recently unless it is drawn by the last draw
+     */
+    private boolean evictTile() {
+        int oldest = -1;
+        for (int i = 0; i < tiles.size(); i++) {
+            long count = tiles.valueAt(i).drawCount;
+            if (count < drawCount && (oldest < 0 || count < tiles.valueAt(oldest).drawCount)) {
+                oldest = i;
+            }
+        }
+        if (oldest < 0) {
+            return false;
+        }
+        cache.unreserve(tiles.valueAt(oldest).size);
+        tiles.removeAt(oldest);
+        return true;
+    }
+
+    private void clearRefusedTiles() {
+        for (int i = pendingTiles.size() - 1; i >= 0; i--) {
+            if (!pendingTiles.valueAt(i)) {
+                pendingTiles.removeAt(i);
+            }
+        }
+    }
+
+    private boolean isWanted(int sampleSize, int row, int col) {
+        return !released && sampleSize == wantedSample
+                && row >= wantedTop && row < wantedBottom
+                && col >= wantedLeft && col < wantedRight;
+    }
+
+    private Bitmap decodeTile(int sampleSize, int row, int col) {
+        int tileSize = TILE_SIZE * sampleSize;
+        Rect region = new Rect(col * tileSize, row * tileSize,
+                Math.min(sourceWidth, (col + 1) * tileSize),
+                Math.min(sourceHeight, (row + 1) * tileSize));
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        GestureMetrics.beginSection("TileDecoder.decodeTile");
+        try {
+            return decoder.decodeRegion(region, options);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "decode tile out of memory", e);
+            return null;
+        } catch (IllegalStateException e) {
+            // the decoder is recycled
+            return null;
+        } finally {
+            GestureMetrics.endSection();
+        }
+    }
+
+    private static long tileKey(int sampleSize, int row, int col) {
+        return ((long) sampleSize << 48) | ((long) row << 24) | col;
+    }
+
+    public void release() {
+        released = true;
+        for (int i = 0; i < tiles.size(); i++) {
+            cache.unreserve(tiles.valueAt(i).size);
+        }
+        tiles.clear();
+        pendingTiles.clear();
+        EXECUTOR.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (decoder != null) {
+                    decoder.recycle();
+                    decoder = null;
+                }
+            }
+        });
+    }
+}
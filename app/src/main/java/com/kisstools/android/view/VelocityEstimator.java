@@ -0,0 +1,142 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.view.MotionEvent;
+
+/**
+ * estimate the velocity of one pointer by a least squares line fit over the
+ * latest samples. the samples are kept in a fixed size ring, and only the
+ * samples of an event that fit in the ring are read, so adding an event costs
+ * the same however many samples the touch panel batched in it
+ */
+final class VelocityEstimator {
+
+    private static final int RING_SIZE = 16;
+
+    /**
+     * the samples older than the horizon do not count
+     */
+    private static final long HORIZON = 100;
+
+    /**
+     * the pointer is regarded as stopped before a gap this long
+     */
+    private static final long STOPPED_GAP = 40;
+
+    private float[] xs;
+
+    private float[] ys;
+
+    private long[] times;
+
+    private int head;
+
+    private int count;
+
+    private float velocityX, velocityY;
+
+    VelocityEstimator() {
+        this.xs = new float[RING_SIZE];
+        this.ys = new float[RING_SIZE];
+        this.times = new long[RING_SIZE];
+    }
+
+    public void clear() {
+        head = 0;
+        count = 0;
+        velocityX = 0;
+        velocityY = 0;
+    }
+
+    public void addSample(float x, float y, long time) {
+        if (count > 0 && time < times[(head + RING_SIZE - 1) % RING_SIZE]) {
+            // out of order samples break the fit
+            clear();
+        }
+        xs[head] = x;
+        ys[head] = y;
+        times[head] = time;
+        head = (head + 1) % RING_SIZE;
+        if (count < RING_SIZE) {
+            count++;
+        }
+    }
+
+    /**
+     * add the historical samples of the pointer batched in the event and its
+     * current position
+     */
+    public void addMovement(MotionEvent event, int pointerIndex) {
+        int historySize = event.getHistorySize();
+        for (int h = Math.max(0, historySize - RING_SIZE + 1); h < historySize; h++) {
+            addSample(event.getHistoricalX(pointerIndex, h), event.getHistoricalY(pointerIndex, h),
+                    event.getHistoricalEventTime(h));
+        }
+        addSample(event.getX(pointerIndex), event.getY(pointerIndex), event.getEventTime());
+    }
+
+    /**
+     * fit the samples within the horizon of the newest one
+     *
+     * @param maxVelocity the max velocity in pixels per second
+     */
+    public void computeVelocity(float maxVelocity) {
+        velocityX = 0;
+        velocityY = 0;
+        if (count < 2) {
+            return;
+        }
+
+        int newest = (head + RING_SIZE - 1) % RING_SIZE;
+        long newestTime = times[newest];
+        float sumT = 0, sumX = 0, sumY = 0;
+        float sumTT = 0, sumTX = 0, sumTY = 0;
+        int samples = 0;
+        long lastTime = newestTime;
+        for (int i = 0; i < count; i++) {
+            int index = (newest + RING_SIZE - i) % RING_SIZE;
+            long time = times[index];
+            if (newestTime - time > HORIZON || lastTime - time > STOPPED_GAP) {
+                break;
+            }
+            lastTime = time;
+            // relative to the newest sample to keep the sums small
+            float t = time - newestTime;
+            float x = xs[index] - xs[newest];
+            float y = ys[index] - ys[newest];
+            sumT += t;
+            sumX += x;
+            sumY += y;
+            sumTT += t * t;
+            sumTX += t * x;
+            sumTY += t * y;
+            samples++;
+        }
+        if (samples < 2) {
+            return;
+        }
+
+        float denominator = samples * sumTT - sumT * sumT;
+        if (denominator == 0) {
+            return;
+        }
+        // the slopes are in pixels per millisecond
+        velocityX = clamp((samples * sumTX - sumT * sumX) / denominator * 1000, maxVelocity);
+        velocityY = clamp((samples * sumTY - sumT * sumY) / denominator * 1000, maxVelocity);
+    }
+
+    private static float clamp(float velocity, float maxVelocity) {
+        return Math.max(-maxVelocity, Math.min(maxVelocity, velocity));
+    }
+
+    public float getVelocityX() {
+        return velocityX;
+    }
+
+    public float getVelocityY() {
+        return velocityY;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the gestures and the frames drawn after each of their events allocate
+ * nothing once warmed up, whatever the budgets of the replays are set to
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AllocationBudgetTest {
+
+    private PhotoView photoView;
+
+    private Canvas canvas;
+
+    @Before
+    public void setUp() {
+        assertTrue("run the tests with the allocation instrumenter as the java agent",
+                AllocationCounter.isAgentActive());
+        photoView = GestureBudgetTest.createPhotoView();
+        canvas = new Canvas(Bitmap.createBitmap(GestureFixtures.VIEW_WIDTH,
+                GestureFixtures.VIEW_HEIGHT, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void pinch() throws Exception {
+        checkAllocations(GestureFixtures.PINCH);
+    }
+
+    @Test
+    public void fling() throws Exception {
+        checkAllocations(GestureFixtures.FLING);
+    }
+
+    @Test
+    public void doubleTap() throws Exception {
+        checkAllocations(GestureFixtures.DOUBLE_TAP);
+    }
+
+    @Test
+    public void cropDrag() throws Exception {
+        // the grid is drawn over the photo
+        photoView.setEnableCrop(true);
+        checkAllocations(GestureFixtures.CROP_DRAG);
+    }
+
+    private void checkAllocations(String name) throws Exception {
+        GestureReplayer.Report report = new GestureReplayer(photoView).setCanvas(canvas)
+                .replay(GestureFixtures.load(name));
+        assertEquals(name + " allocates at " + report.getAllocationSites(), 0,
+                report.getMaxAllocations());
+    }
+}
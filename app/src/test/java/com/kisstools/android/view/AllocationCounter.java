@@ -0,0 +1,142 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
+import com.google.monitoring.runtime.instrumentation.Sampler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * count the objects allocated by the classes of the library on the calling
+ * thread. the test jvm runs with the allocation instrumenter as its java
+ * agent, an allocation is charged to the first frame out of the jdk, so the
+ * collections grown by the library count and the shadows of robolectric and
+ * the test support classes do not
+ */
+final class AllocationCounter implements Sampler {
+
+    private static final String PACKAGE = "com.kisstools.android.";
+
+    private static final String[] SKIPPED = {
+            "com.google.monitoring.", "java.", "javax.", "sun.", "jdk.",
+            AllocationCounter.class.getName()
+    };
+
+    private List<String> ignored;
+
+    private volatile Thread thread;
+
+    private int count;
+
+    /**
+     * the first sites counted, to tell where the allocations come from
+     */
+    private List<String> sites;
+
+    AllocationCounter() {
+        this.ignored = new ArrayList<String>();
+        this.sites = new ArrayList<String>();
+    }
+
+    /**
+     * the allocations of the classes and their inner classes are not counted
+     */
+    public AllocationCounter ignore(Class<?>... classes) {
+        for (Class<?> clazz : classes) {
+            ignored.add(clazz.getName());
+        }
+        return this;
+    }
+
+    /**
+     * whether the java agent instruments the allocations, the counts are
+     * all zero without it
+     */
+    public static boolean isAgentActive() {
+        final int[] samples = new int[1];
+        final Thread current = Thread.currentThread();
+        Sampler probe = new Sampler() {
+
+            @Override
+            public void sampleAllocation(int count, String desc, Object newObj, long size) {
+                if (Thread.currentThread() == current) {
+                    samples[0]++;
+                }
+            }
+        };
+        AllocationRecorder.addSampler(probe);
+        try {
+            Object object = new Object();
+            return samples[0] > 0 && object != null;
+        } finally {
+            AllocationRecorder.removeSampler(probe);
+        }
+    }
+
+    public void start() {
+        count = 0;
+        sites.clear();
+        thread = Thread.currentThread();
+        AllocationRecorder.addSampler(this);
+    }
+
+    /**
+     * @return the allocations since {@link #start()}
+     */
+    public int stop() {
+        thread = null;
+        AllocationRecorder.removeSampler(this);
+        return count;
+    }
+
+    public List<String> getSites() {
+        return sites;
+    }
+
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size) {
+        if (Thread.currentThread() != thread) {
+            return;
+        }
+        StackTraceElement site = findSite(new Throwable().getStackTrace());
+        if (site == null || !site.getClassName().startsWith(PACKAGE) || isIgnored(site)) {
+            return;
+        }
+        this.count++;
+        if (sites.size() < 10) {
+            sites.add(desc + " at " + site);
+        }
+    }
+
+    private StackTraceElement findSite(StackTraceElement[] stack) {
+        for (StackTraceElement element : stack) {
+            if (!isSkipped(element.getClassName())) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSkipped(String className) {
+        for (String prefix : SKIPPED) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isIgnored(StackTraceElement site) {
+        String className = site.getClassName();
+        for (String name : ignored) {
+            if (className.equals(name) || className.startsWith(name + "$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchCropperTest {
+
+    private static final int WIDTH = 1000;
+
+    private static final int HEIGHT = 800;
+
+    private static PhotoView.CropRequest request(float left, float top, float right,
+            float bottom) {
+        return new PhotoView.CropRequest(new RectF(left, top, right, bottom), 100, 100);
+    }
+
+    private static List<BatchCropper.Group> group(PhotoView.CropRequest... requests) {
+        BatchCropper cropper = new BatchCropper(RuntimeEnvironment.application, null, null,
+                Arrays.asList(requests), 0, null, null);
+        return cropper.groupRequests(WIDTH, HEIGHT);
+    }
+
+    private static List<Integer> sortedIndexes(BatchCropper.Group group) {
+        List<Integer> indexes = new ArrayList<Integer>(group.getIndexes());
+        Collections.sort(indexes);
+        return indexes;
+    }
+
+    @Test
+    public void disjointRegionsKeptApart() {
+        List<BatchCropper.Group> groups = group(
+                request(0, 0, 0.2f, 0.2f),
+                request(0.5f, 0.5f, 0.8f, 0.8f));
+        assertEquals(2, groups.size());
+        assertEquals(new Rect(0, 0, 200, 160), groups.get(0).getBounds());
+        assertEquals(new Rect(500, 400, 800, 640), groups.get(1).getBounds());
+    }
+
+    @Test
+    public void overlappingRegionsMerged() {
+        List<BatchCropper.Group> groups = group(
+                request(0, 0, 0.3f, 0.3f),
+                request(0.2f, 0.2f, 0.5f, 0.5f),
+                request(0.7f, 0.7f, 0.9f, 0.9f));
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.asList(0, 1), sortedIndexes(groups.get(0)));
+        assertEquals(new Rect(0, 0, 500, 400), groups.get(0).getBounds());
+        assertEquals(Arrays.asList(2), sortedIndexes(groups.get(1)));
+    }
+
+    @Test
+    public void bridgingRegionMergesGroups() {
+        // the last region overlaps both groups, and the bounds of the merged
+        // group overlap the third one
+        List<BatchCropper.Group> groups = group(
+                request(0, 0, 0.2f, 0.2f),
+                request(0.5f, 0.5f, 0.7f, 0.7f),
+                request(0.1f, 0.6f, 0.3f, 0.9f),
+                request(0.15f, 0.15f, 0.55f, 0.55f));
+        assertEquals(1, groups.size());
+        assertEquals(Arrays.asList(0, 1, 2, 3), sortedIndexes(groups.get(0)));
+        assertEquals(new Rect(0, 0, 700, 720), groups.get(0).getBounds());
+    }
+
+    @Test
+    public void touchingRegionsKeptApart() {
+        List<BatchCropper.Group> groups = group(
+                request(0, 0, 0.5f, 0.5f),
+                request(0.5f, 0, 1, 0.5f));
+        assertEquals(2, groups.size());
+    }
+
+    @Test
+    public void regionsClippedToPhoto() {
+        List<BatchCropper.Group> groups = group(
+                request(-0.5f, -0.5f, 0.5f, 0.5f),
+                request(1.2f, 1.2f, 1.5f, 1.5f),
+                request(0.6f, 0.6f, 0.6f, 0.9f));
+        // the region outside and the empty region are dropped
+        assertEquals(1, groups.size());
+        assertEquals(new Rect(0, 0, 500, 400), groups.get(0).getBounds());
+        assertEquals(Arrays.asList(0), groups.get(0).getIndexes());
+    }
+
+    @Test
+    public void noRegions() {
+        assertTrue(group().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyOutputRejected() {
+        new PhotoView.CropRequest(new RectF(0, 0, 1, 1), 100, 0);
+    }
+
+    @Test
+    public void deliveredWhenAllRegionsOutside() {
+        final Bitmap[][] delivered = new Bitmap[1][];
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        BatchCropper cropper = new BatchCropper(RuntimeEnvironment.application, null, bitmap,
+                Arrays.asList(request(1.2f, 1.2f, 1.5f, 1.5f), request(-1, 0, -0.5f, 1)), 0,
+                Bitmap.Config.ARGB_8888, new PhotoView.BatchCropCallback() {
+
+                    @Override
+                    public void onCropped(Bitmap[] results) {
+                        delivered[0] = results;
+                    }
+                });
+        // the main looper runs the delivery at once
+        cropper.run();
+        assertNotNull(delivered[0]);
+        assertEquals(2, delivered[0].length);
+        assertNull(delivered[0][0]);
+        assertNull(delivered[0][1]);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BitmapCacheTest {
+
+    /**
+     * the bytes of a 10x10 argb bitmap
+     */
+    private static final int BITMAP_SIZE = 400;
+
+    private BitmapCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new BitmapCache(BITMAP_SIZE * 2);
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+    }
+
+    @Test
+    public void putHoldsReference() {
+        BitmapCache.Entry entry = cache.put("a", createBitmap());
+        assertEquals(BITMAP_SIZE, cache.size());
+        cache.trimToSize(0);
+        // in use, not evicted
+        assertEquals(BITMAP_SIZE, cache.size());
+
+        cache.release(entry);
+        cache.trimToSize(0);
+        assertEquals(0, cache.size());
+        assertNull(cache.acquire("a"));
+    }
+
+    @Test
+    public void putReturnsExistingEntry() {
+        Bitmap bitmap = createBitmap();
+        BitmapCache.Entry entry = cache.put("a", bitmap);
+        BitmapCache.Entry other = cache.put("a", createBitmap());
+        assertSame(entry, other);
+        assertSame(bitmap, other.getBitmap());
+        assertEquals(BITMAP_SIZE, cache.size());
+
+        // held twice, still in use after one release
+        cache.release(entry);
+        cache.trimToSize(0);
+        assertEquals(BITMAP_SIZE, cache.size());
+        cache.release(other);
+        cache.trimToSize(0);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void acquireCountsReferences() {
+        BitmapCache.Entry entry = cache.put("a", createBitmap());
+        cache.release(entry);
+        BitmapCache.Entry first = cache.acquire("a");
+        BitmapCache.Entry second = cache.acquire("a");
+        assertSame(entry, first);
+        assertSame(entry, second);
+
+        cache.release(first);
+        cache.trimToSize(0);
+        assertNotNull(cache.acquire("a"));
+        cache.release(entry);
+        cache.release(second);
+        cache.trimToSize(0);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void extraReleaseIgnored() {
+        BitmapCache.Entry entry = cache.put("a", createBitmap());
+        cache.release(entry);
+        cache.release(entry);
+        // the extra release does not leave a negative count to steal the
+        // reference taken next
+        BitmapCache.Entry acquired = cache.acquire("a");
+        cache.trimToSize(0);
+        assertEquals(BITMAP_SIZE, cache.size());
+        cache.release(acquired);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        cache.release(cache.put("a", createBitmap()));
+        cache.release(cache.put("b", createBitmap()));
+        // a is used after b
+        cache.release(cache.acquire("a"));
+        cache.release(cache.put("c", createBitmap()));
+        assertEquals(BITMAP_SIZE * 2, cache.size());
+        assertNull(cache.acquire("b"));
+        assertNotNull(cache.acquire("a"));
+        assertNotNull(cache.acquire("c"));
+    }
+
+    @Test
+    public void entriesInUseExceedMaxSize() {
+        BitmapCache.Entry a = cache.put("a", createBitmap());
+        BitmapCache.Entry b = cache.put("b", createBitmap());
+        BitmapCache.Entry c = cache.put("c", createBitmap());
+        assertEquals(BITMAP_SIZE * 3, cache.size());
+
+        // trimmed back to the max size when an entry is released
+        cache.release(b);
+        assertEquals(BITMAP_SIZE * 2, cache.size());
+        assertNull(cache.acquire("b"));
+        cache.release(a);
+        cache.release(c);
+        assertEquals(BITMAP_SIZE * 2, cache.size());
+    }
+
+    @Test
+    public void acquireByPixelPolicy() {
+        Uri uri = Uri.parse("file:///sdcard/photo.jpg");
+        Bitmap rgb565 = Bitmap.createBitmap(10, 10, Bitmap.Config.RGB_565);
+        String key = BitmapCache.getKey(uri, 100, 100, rgb565.getConfig());
+        cache.release(cache.put(key, rgb565));
+
+        // the RGB_565 decode is not taken for the quality
+        assertNull(cache.acquire(uri, 100, 100, PhotoView.PIXEL_QUALITY));
+        BitmapCache.Entry entry = cache.acquire(uri, 100, 100, PhotoView.PIXEL_AUTO);
+        assertSame(rgb565, entry.getBitmap());
+        cache.release(entry);
+
+        // the ARGB_8888 decode is cached beside it and preferred
+        Bitmap argb = createBitmap();
+        cache.release(cache.put(BitmapCache.getKey(uri, 100, 100, argb.getConfig()), argb));
+        entry = cache.acquire(uri, 100, 100, PhotoView.PIXEL_QUALITY);
+        assertSame(argb, entry.getBitmap());
+        cache.release(entry);
+        entry = cache.acquire(uri, 100, 100, PhotoView.PIXEL_MEMORY);
+        assertSame(argb, entry.getBitmap());
+        cache.release(entry);
+    }
+
+    @Test
+    public void reserveEvictsUnusedEntries() {
+        cache.release(cache.put("a", createBitmap()));
+        BitmapCache.Entry b = cache.put("b", createBitmap());
+
+        // the unused entry makes room for the reservation
+        assertTrue(cache.reserve(BITMAP_SIZE));
+        assertEquals(BITMAP_SIZE * 2, cache.size());
+        assertNull(cache.acquire("a"));
+
+        // the entry in use and the reservation fill the budget
+        assertFalse(cache.reserve(1));
+        assertEquals(BITMAP_SIZE * 2, cache.size());
+
+        cache.unreserve(BITMAP_SIZE);
+        assertEquals(BITMAP_SIZE, cache.size());
+        cache.release(b);
+        assertTrue(cache.reserve(BITMAP_SIZE));
+        // the reservation is counted when the entries are put
+        cache.release(cache.put("c", createBitmap()));
+        assertNull(cache.acquire("b"));
+        assertEquals(BITMAP_SIZE * 2, cache.size());
+    }
+}
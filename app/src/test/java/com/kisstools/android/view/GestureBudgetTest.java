@@ -0,0 +1,126 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+import android.view.View;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * replay the recorded gestures and fail when a change takes them over the
+ * budgets, which are set by the gradle properties gestureLatencyBudget in
+ * nanoseconds at the 99th percentile, gestureAllocationBudget and
+ * gestureCommitBudget per event. a negative budget is not checked
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GestureBudgetTest {
+
+    private static final String LATENCY_BUDGET = "gesture.budget.latency";
+
+    private static final String ALLOCATION_BUDGET = "gesture.budget.allocations";
+
+    private static final String COMMIT_BUDGET = "gesture.budget.commits";
+
+    private PhotoView photoView;
+
+    private GestureReplayer.Budget budget;
+
+    @Before
+    public void setUp() {
+        assertTrue("run the tests with the allocation instrumenter as the java agent",
+                AllocationCounter.isAgentActive());
+        photoView = createPhotoView();
+        budget = new GestureReplayer.Budget()
+                .setLatency(Long.getLong(LATENCY_BUDGET, 50000000), 99)
+                .setAllocations(Integer.getInteger(ALLOCATION_BUDGET, 0))
+                .setCommits(Integer.getInteger(COMMIT_BUDGET, 1));
+    }
+
+    static PhotoView createPhotoView() {
+        PhotoView photoView = new PhotoView(RuntimeEnvironment.application);
+        photoView.setImageBitmap(Bitmap.createBitmap(GestureFixtures.PHOTO_WIDTH,
+                GestureFixtures.PHOTO_HEIGHT, Bitmap.Config.RGB_565));
+        photoView.measure(
+                View.MeasureSpec.makeMeasureSpec(GestureFixtures.VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(GestureFixtures.VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+        photoView.layout(0, 0, GestureFixtures.VIEW_WIDTH, GestureFixtures.VIEW_HEIGHT);
+        return photoView;
+    }
+
+    @Test
+    public void fixturesMatchGenerator() throws Exception {
+        for (String name : GestureFixtures.NAMES) {
+            GestureRecord saved = GestureFixtures.load(name);
+            GestureRecord created = GestureFixtures.create(name);
+            assertEquals(name, created.getEventCount(), saved.getEventCount());
+            for (int i = 0; i < saved.getEventCount(); i++) {
+                assertEquals(name, created.getAction(i), saved.getAction(i));
+                assertEquals(name, created.getHistorySize(i), saved.getHistorySize(i));
+                assertEquals(name, created.getTime(i), saved.getTime(i));
+                assertEquals(name, created.getX(i, 0), saved.getX(i, 0), 0);
+            }
+        }
+    }
+
+    @Test
+    public void pinch() throws Exception {
+        checkBudget(GestureFixtures.PINCH);
+    }
+
+    @Test
+    public void fling() throws Exception {
+        checkBudget(GestureFixtures.FLING);
+    }
+
+    @Test
+    public void doubleTap() throws Exception {
+        checkBudget(GestureFixtures.DOUBLE_TAP);
+    }
+
+    @Test
+    public void cropDrag() throws Exception {
+        photoView.setEnableCrop(true);
+        checkBudget(GestureFixtures.CROP_DRAG);
+    }
+
+    @Test
+    public void replayKeepsDiagnosticsListener() throws Exception {
+        final float[] scales = {Float.MAX_VALUE, 0};
+        PhotoView.DiagnosticsListener listener = new PhotoView.DiagnosticsListener() {
+
+            @Override
+            public void onEvent(int event, float arg0, float arg1) {
+                if (event == PhotoView.EVENT_MATRIX) {
+                    scales[0] = Math.min(scales[0], arg0);
+                    scales[1] = Math.max(scales[1], arg0);
+                }
+            }
+        };
+        photoView.setDiagnosticsListener(listener);
+        new GestureReplayer(photoView).replay(GestureFixtures.load(GestureFixtures.PINCH));
+        assertSame(listener, photoView.getDiagnosticsListener());
+        // the pinch zoomed the photo in
+        assertTrue(scales[1] > scales[0] * 2);
+    }
+
+    private void checkBudget(String name) throws Exception {
+        GestureReplayer.Report report = new GestureReplayer(photoView)
+                .replay(GestureFixtures.load(name));
+        String exceeded = budget.check(report);
+        if (exceeded != null) {
+            fail(name + " over budget: " + exceeded + report);
+        }
+    }
+}
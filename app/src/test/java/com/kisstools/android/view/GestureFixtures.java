@@ -0,0 +1,175 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.view.MotionEvent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * the gestures replayed by the tests, saved under src/test/resources/gestures.
+ * they are drawn for a 720x1280 view showing a 2000x1500 photo, the touch
+ * panel samples at 120Hz and two samples are batched in each 60Hz event.
+ * run the main with the resources directory to write them again, or replace
+ * a file with a {@link GestureRecord} recorded on a device
+ */
+final class GestureFixtures {
+
+    static final int VIEW_WIDTH = 720;
+
+    static final int VIEW_HEIGHT = 1280;
+
+    static final int PHOTO_WIDTH = 2000;
+
+    static final int PHOTO_HEIGHT = 1500;
+
+    static final String PINCH = "pinch";
+
+    static final String FLING = "fling";
+
+    static final String DOUBLE_TAP = "double-tap";
+
+    static final String CROP_DRAG = "crop-drag";
+
+    static final String[] NAMES = {
+            PINCH, FLING, DOUBLE_TAP, CROP_DRAG
+    };
+
+    private static final int SAMPLE_INTERVAL = 8;
+
+    private static final int BATCH_SIZE = 2;
+
+    private GestureFixtures() {
+    }
+
+    public static GestureRecord load(String name) throws IOException {
+        InputStream stream = GestureFixtures.class.getResourceAsStream(
+                "/gestures/" + name + ".gesture");
+        if (stream == null) {
+            throw new IOException("no gesture " + name);
+        }
+        try {
+            return GestureRecord.readFrom(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static GestureRecord create(String name) {
+        GestureRecord record = new GestureRecord();
+        if (PINCH.equals(name)) {
+            // spread two fingers to zoom in, then pinch them back
+            pinch(record, 0, 360, 640, 60, 260, 480);
+            pinch(record, 800, 360, 640, 260, 80, 400);
+        } else if (FLING.equals(name)) {
+            // zoom in by a double tap, then flick the photo to the left
+            tap(record, 0, 360, 640);
+            tap(record, 120, 360, 640);
+            drag(record, 800, 500, 640, 200, 600, 96);
+        } else if (DOUBLE_TAP.equals(name)) {
+            // zoom in and out again
+            tap(record, 0, 300, 600);
+            tap(record, 130, 300, 600);
+            tap(record, 800, 300, 600);
+            tap(record, 920, 300, 600);
+        } else if (CROP_DRAG.equals(name)) {
+            // the grid is 360 pixels square in the center of the view,
+            // stretch it by the top left corner and move it by its center
+            drag(record, 0, 182, 462, 100, 400, 480);
+            drag(record, 800, 340, 640, 300, 580, 480);
+        } else {
+            throw new IllegalArgumentException("unknown gesture " + name);
+        }
+        return record;
+    }
+
+    /**
+     * one pointer moved at a constant speed from the down to the up
+     */
+    private static void drag(GestureRecord record, long time, float fromX, float fromY,
+            float toX, float toY, long duration) {
+        int[] ids = {0};
+        float[] xs = {fromX};
+        float[] ys = {fromY};
+        record.add(time, MotionEvent.ACTION_DOWN, ids, xs, ys);
+        int samples = (int) (duration / SAMPLE_INTERVAL);
+        for (int i = 1; i <= samples; i++) {
+            float fraction = (float) i / samples;
+            xs[0] = fromX + (toX - fromX) * fraction;
+            ys[0] = fromY + (toY - fromY) * fraction;
+            addSample(record, i, time + i * SAMPLE_INTERVAL, ids, xs, ys);
+        }
+        record.add(time + duration, MotionEvent.ACTION_UP, ids, xs, ys);
+    }
+
+    /**
+     * two pointers placed symmetrically around the focus, their distance
+     * changes from one span to the other
+     */
+    private static void pinch(GestureRecord record, long time, float focusX, float focusY,
+            float fromSpan, float toSpan, long duration) {
+        int[] first = {0};
+        int[] ids = {0, 1};
+        float[] xs = {focusX - fromSpan / 2, focusX + fromSpan / 2};
+        float[] ys = {focusY - fromSpan / 4, focusY + fromSpan / 4};
+        record.add(time, MotionEvent.ACTION_DOWN, first, xs, ys);
+        record.add(time + SAMPLE_INTERVAL, MotionEvent.ACTION_POINTER_DOWN
+                | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), ids, xs, ys);
+        time += SAMPLE_INTERVAL;
+        int samples = (int) (duration / SAMPLE_INTERVAL);
+        for (int i = 1; i <= samples; i++) {
+            float span = fromSpan + (toSpan - fromSpan) * i / samples;
+            xs[0] = focusX - span / 2;
+            xs[1] = focusX + span / 2;
+            ys[0] = focusY - span / 4;
+            ys[1] = focusY + span / 4;
+            addSample(record, i, time + i * SAMPLE_INTERVAL, ids, xs, ys);
+        }
+        time += duration;
+        record.add(time, MotionEvent.ACTION_POINTER_UP
+                | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), ids, xs, ys);
+        record.add(time + SAMPLE_INTERVAL, MotionEvent.ACTION_UP, first, xs, ys);
+    }
+
+    private static void tap(GestureRecord record, long time, float x, float y) {
+        int[] ids = {0};
+        float[] xs = {x};
+        float[] ys = {y};
+        record.add(time, MotionEvent.ACTION_DOWN, ids, xs, ys);
+        record.add(time + 60, MotionEvent.ACTION_UP, ids, xs, ys);
+    }
+
+    /**
+     * a move event is started by every other sample, the sample between
+     * them is batched in it as its history
+     */
+    private static void addSample(GestureRecord record, int sample, long time, int[] ids,
+            float[] xs, float[] ys) {
+        if (sample % BATCH_SIZE == 1) {
+            record.add(time, MotionEvent.ACTION_MOVE, ids, xs, ys);
+        } else {
+            record.addBatch(time, xs, ys);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : "app/src/test/resources", "gestures");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        for (String name : NAMES) {
+            OutputStream stream = new FileOutputStream(new File(dir, name + ".gesture"));
+            try {
+                create(name).writeTo(stream);
+            } finally {
+                stream.close();
+            }
+        }
+    }
+}
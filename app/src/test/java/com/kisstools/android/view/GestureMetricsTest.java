@@ -0,0 +1,100 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class GestureMetricsTest {
+
+    /**
+     * the refresh rate of the display is 60Hz
+     */
+    private static final long FRAME_INTERVAL = 1000000000L / 60;
+
+    private GestureMetrics metrics;
+
+    private GestureMetrics.Session session;
+
+    @Before
+    public void setUp() {
+        metrics = new GestureMetrics(RuntimeEnvironment.application);
+        metrics.setListener(new GestureMetrics.Listener() {
+
+            @Override
+            public void onSession(GestureMetrics.Session ended) {
+                session = ended;
+            }
+        });
+    }
+
+    private void requestAndDraw() {
+        metrics.onFrameRequested();
+        metrics.onDraw(System.nanoTime(), 1000);
+    }
+
+    @Test
+    public void idlePauseNotDropped() throws Exception {
+        metrics.onGesture(GestureMetrics.GESTURE_DRAG);
+        requestAndDraw();
+        // the finger holds still, nothing is drawn
+        Thread.sleep(200);
+        requestAndDraw();
+        metrics.onGesture(GestureMetrics.GESTURE_NONE);
+
+        assertNotNull(session);
+        assertEquals(GestureMetrics.GESTURE_DRAG, session.getGesture());
+        assertEquals(2, session.getFrames());
+        assertEquals(0, session.getDroppedFrames());
+        assertTrue(session.getWorstFrameInterval() < FRAME_INTERVAL);
+    }
+
+    @Test
+    public void lateFrameDropped() {
+        metrics.onGesture(GestureMetrics.GESTURE_SCALE);
+        long start = System.nanoTime();
+        metrics.onFrameRequested();
+        metrics.onDraw(start, 1000);
+        // requested right after the frame, drawn three frames later
+        metrics.onFrameRequested();
+        metrics.onDraw(start + FRAME_INTERVAL * 3, 1000);
+        metrics.onGesture(GestureMetrics.GESTURE_NONE);
+
+        assertEquals(2, session.getDroppedFrames());
+        assertEquals(FRAME_INTERVAL * 3, session.getWorstFrameInterval());
+        assertEquals(2, metrics.getDroppedFrames(GestureMetrics.GESTURE_SCALE));
+        assertEquals(1, metrics.getSessionCount(GestureMetrics.GESTURE_SCALE));
+    }
+
+    @Test
+    public void unrequestedDrawNotMeasured() {
+        metrics.onGesture(GestureMetrics.GESTURE_FLING);
+        requestAndDraw();
+        metrics.onDraw(System.nanoTime() + FRAME_INTERVAL * 10, 1000);
+        metrics.onGesture(GestureMetrics.GESTURE_NONE);
+
+        assertEquals(2, session.getFrames());
+        assertEquals(0, session.getDroppedFrames());
+        assertEquals(1, metrics.getFrameIntervals(GestureMetrics.GESTURE_FLING).getCount());
+        assertEquals(2, metrics.getDrawTimes(GestureMetrics.GESTURE_FLING).getCount());
+    }
+
+    @Test
+    public void idleNotRecorded() {
+        requestAndDraw();
+        metrics.onCommit();
+        assertEquals(0, metrics.getFrameCount(GestureMetrics.GESTURE_DRAG));
+        assertNull(session);
+    }
+}
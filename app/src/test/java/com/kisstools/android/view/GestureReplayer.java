@@ -0,0 +1,341 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import org.robolectric.Robolectric;
+import org.robolectric.util.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * replay a {@link GestureRecord} against a photo view on the paused main
+ * looper of robolectric, the clock of the looper is advanced to the time of
+ * each event so the taps, the long press and the frames of the animations
+ * run between the events as they do on a device.
+ *
+ * the record is played once to warm up, once to measure the latency of each
+ * event and once to count its allocations, the view is reset to fit its photo
+ * before each pass. the allocations are counted over the frames run before
+ * the event, its dispatch and the draw after it
+ */
+class GestureReplayer {
+
+    private static final int MAX_POINTERS = 10;
+
+    /**
+     * longer than the double tap and the long press timeouts, and the
+     * animations started by a gesture
+     */
+    private static final long SETTLE_TIME = 1000;
+
+    private PhotoView photoView;
+
+    private Canvas canvas;
+
+    private Scheduler scheduler;
+
+    private AllocationCounter allocationCounter;
+
+    private MotionEvent.PointerProperties[] pointerProperties;
+
+    private MotionEvent.PointerCoords[] pointerCoords;
+
+    private int commitCount;
+
+    GestureReplayer(PhotoView photoView) {
+        this.photoView = photoView;
+        this.scheduler = Robolectric.getForegroundThreadScheduler();
+        this.allocationCounter = new AllocationCounter().ignore(GestureReplayer.class,
+                ShadowMotionEventNatives.class, ShadowFrameChoreographer.class);
+        this.pointerProperties = MotionEvent.PointerProperties.createArray(MAX_POINTERS);
+        this.pointerCoords = MotionEvent.PointerCoords.createArray(MAX_POINTERS);
+    }
+
+    /**
+     * draw the view into the canvas after each event, the draw is measured
+     * with the event
+     */
+    public GestureReplayer setCanvas(Canvas canvas) {
+        this.canvas = canvas;
+        return this;
+    }
+
+    /**
+     * the allocations of the classes are not counted, such as the listeners
+     * of the test
+     */
+    public GestureReplayer ignore(Class<?>... classes) {
+        allocationCounter.ignore(classes);
+        return this;
+    }
+
+    /**
+     * the diagnostics listener of the view keeps receiving the events while
+     * replaying, and it is set back when the replay ends
+     */
+    public Report replay(GestureRecord record) {
+        final PhotoView.DiagnosticsListener listener = photoView.getDiagnosticsListener();
+        photoView.setDiagnosticsListener(new PhotoView.DiagnosticsListener() {
+
+            @Override
+            public void onEvent(int event, float arg0, float arg1) {
+                if (event == PhotoView.EVENT_MATRIX) {
+                    commitCount++;
+                }
+                if (listener != null) {
+                    listener.onEvent(event, arg0, arg1);
+                }
+            }
+        });
+
+        boolean paused = scheduler.isPaused();
+        scheduler.pause();
+        Report report = new Report(record.getEventCount());
+        try {
+            play(record, null, null);
+            play(record, report, null);
+            play(record, report, allocationCounter);
+        } finally {
+            if (!paused) {
+                scheduler.unPause();
+            }
+            photoView.setDiagnosticsListener(listener);
+        }
+        return report;
+    }
+
+    private void play(GestureRecord record, Report report, AllocationCounter counter) {
+        settle();
+        Drawable drawable = photoView.getDrawable();
+        if (drawable != null) {
+            // fit the photo again
+            photoView.setImageDrawable(drawable);
+        }
+
+        long downTime = SystemClock.uptimeMillis();
+        for (int i = 0; i < record.getEventCount(); i++) {
+            MotionEvent event = obtainEvent(record, i, downTime);
+            if (counter != null) {
+                counter.start();
+            }
+            scheduler.advanceTo(event.getEventTime());
+            commitCount = 0;
+            long start = System.nanoTime();
+            photoView.dispatchTouchEvent(event);
+            if (canvas != null) {
+                photoView.draw(canvas);
+            }
+            long latency = System.nanoTime() - start;
+            if (counter != null) {
+                report.allocations[i] = counter.stop();
+                report.addSites(counter.getSites());
+            } else if (report != null) {
+                report.latencies[i] = latency;
+                report.commits[i] = commitCount;
+            }
+            event.recycle();
+        }
+        settle();
+    }
+
+    /**
+     * run the pending taps and animations
+     */
+    private void settle() {
+        scheduler.advanceBy(SETTLE_TIME);
+    }
+
+    private MotionEvent obtainEvent(GestureRecord record, int index, long downTime) {
+        int count = Math.min(MAX_POINTERS, record.getPointerCount(index));
+        int historySize = record.getHistorySize(index);
+        for (int i = 0; i < count; i++) {
+            MotionEvent.PointerProperties properties = pointerProperties[i];
+            properties.clear();
+            properties.id = record.getPointerId(index, i);
+            properties.toolType = MotionEvent.TOOL_TYPE_FINGER;
+            setCoords(record, index, i, 0);
+        }
+        MotionEvent event = MotionEvent.obtain(downTime,
+                downTime + record.getHistoricalTime(index, 0), record.getAction(index), count,
+                pointerProperties, pointerCoords, 0, 0, 1, 1, 0, 0,
+                InputDevice.SOURCE_TOUCHSCREEN, 0);
+        for (int h = 1; h <= historySize; h++) {
+            for (int i = 0; i < count; i++) {
+                setCoords(record, index, i, h);
+            }
+            event.addBatch(downTime + record.getHistoricalTime(index, h), pointerCoords, 0);
+        }
+        return event;
+    }
+
+    private void setCoords(GestureRecord record, int index, int pointer, int pos) {
+        MotionEvent.PointerCoords coords = pointerCoords[pointer];
+        coords.clear();
+        coords.x = record.getHistoricalX(index, pointer, pos);
+        coords.y = record.getHistoricalY(index, pointer, pos);
+        coords.pressure = 1;
+        coords.size = 1;
+    }
+
+    /**
+     * the measures of each replayed event, the latency is in nanoseconds
+     */
+    static class Report {
+
+        private static final int MAX_SITES = 10;
+
+        private long[] latencies;
+
+        private int[] allocations;
+
+        private int[] commits;
+
+        private List<String> sites;
+
+        Report(int events) {
+            this.latencies = new long[events];
+            this.allocations = new int[events];
+            this.commits = new int[events];
+            this.sites = new ArrayList<String>();
+        }
+
+        public int getEventCount() {
+            return latencies.length;
+        }
+
+        public long getLatency(int event) {
+            return latencies[event];
+        }
+
+        public int getAllocations(int event) {
+            return allocations[event];
+        }
+
+        public int getCommits(int event) {
+            return commits[event];
+        }
+
+        private void addSites(List<String> allocationSites) {
+            for (String site : allocationSites) {
+                if (sites.size() < MAX_SITES && !sites.contains(site)) {
+                    sites.add(site);
+                }
+            }
+        }
+
+        /**
+         * the first allocation sites of the events
+         */
+        public List<String> getAllocationSites() {
+            return sites;
+        }
+
+        /**
+         * @param percent 0 to 100
+         */
+        public long getLatencyPercentile(float percent) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, latencies.length);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        public int getMaxAllocations() {
+            int max = 0;
+            for (int allocation : allocations) {
+                max = Math.max(max, allocation);
+            }
+            return max;
+        }
+
+        public int getMaxCommits() {
+            int max = 0;
+            for (int commit : commits) {
+                max = Math.max(max, commit);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "events " + getEventCount() + " p50 " + getLatencyPercentile(50)
+                    + "ns p99 " + getLatencyPercentile(99) + "ns max allocations "
+                    + getMaxAllocations() + " max commits " + getMaxCommits();
+        }
+    }
+
+    /**
+     * the limits a replay should stay within, a negative limit is not
+     * checked
+     */
+    static class Budget {
+
+        private long latencyNanos = -1;
+
+        private float latencyPercent = 99;
+
+        private int allocations = -1;
+
+        private int commits = -1;
+
+        /**
+         * limit the latency at the percentile of the events
+         */
+        public Budget setLatency(long nanos, float percent) {
+            this.latencyNanos = nanos;
+            this.latencyPercent = percent;
+            return this;
+        }
+
+        /**
+         * limit the allocations of a single event
+         */
+        public Budget setAllocations(int allocations) {
+            this.allocations = allocations;
+            return this;
+        }
+
+        /**
+         * limit the matrix commits of a single event
+         */
+        public Budget setCommits(int commits) {
+            this.commits = commits;
+            return this;
+        }
+
+        /**
+         * @return the description of the exceeded limits, or null
+         */
+        public String check(Report report) {
+            StringBuilder builder = new StringBuilder();
+            long latency = report.getLatencyPercentile(latencyPercent);
+            if (latencyNanos >= 0 && latency > latencyNanos) {
+                builder.append("p").append(latencyPercent).append(" latency ")
+                        .append(latency).append("ns over ").append(latencyNanos).append("ns; ");
+            }
+            if (allocations >= 0 && report.getMaxAllocations() > allocations) {
+                builder.append("allocations ").append(report.getMaxAllocations())
+                        .append(" over ").append(allocations).append(" ")
+                        .append(report.getAllocationSites()).append("; ");
+            }
+            if (commits >= 0 && report.getMaxCommits() > commits) {
+                builder.append("commits ").append(report.getMaxCommits())
+                        .append(" over ").append(commits).append("; ");
+            }
+            return builder.length() == 0 ? null : builder.toString();
+        }
+    }
+}
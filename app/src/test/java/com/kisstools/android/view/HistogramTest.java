@@ -0,0 +1,96 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+
+    private GestureMetrics.Histogram histogram;
+
+    @Before
+    public void setUp() {
+        histogram = new GestureMetrics.Histogram();
+    }
+
+    @Test
+    public void emptyHistogram() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void countSumMeanAndMax() {
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        // negative values are dropped
+        histogram.add(-5);
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+    }
+
+    @Test
+    public void percentileIsUpperBoundOfBucket() {
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        // 63 of the values are in the buckets up to 63
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(63, histogram.getPercentile(60));
+        // the bound of the last bucket is limited by the max
+        assertEquals(100, histogram.getPercentile(64));
+        assertEquals(100, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void zeroAndLargeValues() {
+        histogram.add(0);
+        histogram.add(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void reset() {
+        histogram.add(10);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void concurrentAdds() throws Exception {
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 1; i <= perThread; i++) {
+                        histogram.add(i + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, histogram.getCount());
+        assertEquals(perThread + threads.length - 1, histogram.getMax());
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.net.Uri;
+import android.widget.FrameLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import com.kisstools.android.viewport.Viewport;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the cache entry of the photo is released while the view is detached from
+ * the window and held again once attached
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PhotoViewAttachTest {
+
+    private FrameLayout container;
+
+    private PhotoView photoView;
+
+    private BitmapCache cache;
+
+    private String key;
+
+    private Bitmap bitmap;
+
+    @Before
+    public void setUp() {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        container = new FrameLayout(activity);
+        activity.setContentView(container);
+        photoView = new PhotoView(activity);
+        container.addView(photoView);
+        cache = BitmapCache.getInstance(activity);
+
+        // cached so the load completes at once
+        Uri uri = Uri.parse("file:///sdcard/photo-" + System.nanoTime() + ".jpg");
+        key = BitmapCache.getKey(uri, (int) (photoView.getWidth() * Viewport.MAX_FACTOR),
+                (int) (photoView.getHeight() * Viewport.MAX_FACTOR), Bitmap.Config.ARGB_8888);
+        bitmap = createBitmap();
+        cache.release(cache.put(key, bitmap));
+        photoView.loadImageURI(uri);
+    }
+
+    @After
+    public void tearDown() {
+        photoView.setImageDrawable(null);
+        cache.trimToSize(0);
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(200, 150, Bitmap.Config.ARGB_8888);
+    }
+
+    private Bitmap getShownBitmap() {
+        return ((BitmapDrawable) photoView.getDrawable()).getBitmap();
+    }
+
+    /**
+     * whether the entry of the key is held by the view
+     */
+    private boolean isHeld() {
+        cache.trimToSize(0);
+        BitmapCache.Entry entry = cache.acquire(key);
+        if (entry == null) {
+            return false;
+        }
+        cache.release(entry);
+        return true;
+    }
+
+    @Test
+    public void entryReleasedWhileDetached() {
+        assertSame(bitmap, getShownBitmap());
+        assertTrue(isHeld());
+
+        container.removeView(photoView);
+        assertFalse(isHeld());
+        // the photo is still shown when attached again
+        assertSame(bitmap, getShownBitmap());
+
+        container.addView(photoView);
+        assertTrue(isHeld());
+        assertSame(bitmap, getShownBitmap());
+    }
+
+    @Test
+    public void cachedAgainByAnotherView() {
+        container.removeView(photoView);
+        cache.trimToSize(0);
+        Bitmap other = createBitmap();
+        cache.release(cache.put(key, other));
+
+        container.addView(photoView);
+        assertNotSame(bitmap, getShownBitmap());
+        assertSame(other, getShownBitmap());
+        assertTrue(isHeld());
+    }
+}
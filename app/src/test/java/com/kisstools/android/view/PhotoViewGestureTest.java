@@ -0,0 +1,101 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PhotoViewGestureTest {
+
+    private PhotoView photoView;
+
+    private MotionEvent.PointerProperties[] properties;
+
+    private MotionEvent.PointerCoords[] coords;
+
+    private long downTime;
+
+    private int gesture;
+
+    private float translateX;
+
+    @Before
+    public void setUp() {
+        photoView = GestureBudgetTest.createPhotoView();
+        photoView.setDiagnosticsListener(new PhotoView.DiagnosticsListener() {
+
+            @Override
+            public void onEvent(int event, float arg0, float arg1) {
+                if (event == PhotoView.EVENT_STATE) {
+                    gesture = (int) arg0;
+                } else if (event == PhotoView.EVENT_TRANSLATE) {
+                    translateX += arg0;
+                }
+            }
+        });
+        properties = new MotionEvent.PointerProperties[2];
+        coords = new MotionEvent.PointerCoords[2];
+        for (int i = 0; i < 2; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+        }
+        downTime = SystemClock.uptimeMillis();
+    }
+
+    @Test
+    public void pinchContinuesWithDrag() {
+        float y = GestureFixtures.VIEW_HEIGHT / 2f;
+        dispatch(MotionEvent.ACTION_DOWN, 0, 260, y);
+        dispatch(MotionEvent.ACTION_POINTER_DOWN | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT),
+                10, 260, y, 460, y);
+        dispatch(MotionEvent.ACTION_MOVE, 20, 160, y, 560, y);
+        assertEquals(GestureMetrics.GESTURE_SCALE, gesture);
+
+        // the first finger is lifted, the second one drags the zoomed photo
+        dispatch(MotionEvent.ACTION_POINTER_UP, 30, 160, y, 560, y);
+        assertEquals(GestureMetrics.GESTURE_DRAG, gesture);
+        translateX = 0;
+        dispatch(MotionEvent.ACTION_MOVE, 40, 520, y);
+        assertEquals(-40, translateX, 0.01f);
+
+        dispatch(MotionEvent.ACTION_UP, 50, 520, y);
+        assertTrue(gesture != GestureMetrics.GESTURE_DRAG);
+    }
+
+    /**
+     * @param positions x and y of each pointer, the pointers left after the
+     *                  first one is lifted keep the id 1
+     */
+    private void dispatch(int action, long time, float... positions) {
+        int count = positions.length / 2;
+        MotionEvent.PointerProperties[] pointers = properties;
+        if (count == 1 && (action == MotionEvent.ACTION_MOVE || action == MotionEvent.ACTION_UP)) {
+            pointers = new MotionEvent.PointerProperties[] {properties[1]};
+        }
+        for (int i = 0; i < count; i++) {
+            coords[i].clear();
+            coords[i].x = positions[i * 2];
+            coords[i].y = positions[i * 2 + 1];
+            coords[i].pressure = 1;
+            coords[i].size = 1;
+        }
+        MotionEvent event = MotionEvent.obtain(downTime, downTime + time, action, count, pointers,
+                coords, 0, 0, 1, 1, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        photoView.dispatchTouchEvent(event);
+        event.recycle();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.net.Uri;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import com.kisstools.android.viewport.Viewport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * the source uri is kept while the previews and the loaded resolutions are
+ * swapped in, so the crops decode the source instead of the screen sized
+ * bitmap shown
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PhotoViewSourceTest {
+
+    private static final int VIEW_WIDTH = 720;
+
+    private static final int VIEW_HEIGHT = 1280;
+
+    private PhotoView photoView;
+
+    private Uri uri;
+
+    private BitmapCache.Entry cached;
+
+    @Before
+    public void setUp() {
+        photoView = new PhotoView(RuntimeEnvironment.application);
+        photoView.measure(View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+        photoView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+        uri = Uri.parse("file:///sdcard/photo-" + System.nanoTime() + ".jpg");
+    }
+
+    @After
+    public void tearDown() {
+        photoView.setImageDrawable(null);
+        if (cached != null) {
+            BitmapCache.getInstance(RuntimeEnvironment.application).release(cached);
+        }
+    }
+
+    /**
+     * put the decoded photo in the cache so the load completes at once
+     */
+    private Bitmap cacheLoaded() {
+        Bitmap bitmap = Bitmap.createBitmap(2000, 1500, Bitmap.Config.ARGB_8888);
+        String key = BitmapCache.getKey(uri, (int) (VIEW_WIDTH * Viewport.MAX_FACTOR),
+                (int) (VIEW_HEIGHT * Viewport.MAX_FACTOR), Bitmap.Config.ARGB_8888);
+        cached = BitmapCache.getInstance(RuntimeEnvironment.application).put(key, bitmap);
+        return bitmap;
+    }
+
+    private Bitmap getShownBitmap() {
+        return ((BitmapDrawable) photoView.getDrawable()).getBitmap();
+    }
+
+    @Test
+    public void keptWhilePreviewShown() {
+        Bitmap preview = Bitmap.createBitmap(200, 150, Bitmap.Config.ARGB_8888);
+        photoView.loadImageURI(uri, preview);
+        assertSame(preview, getShownBitmap());
+        assertEquals(uri, photoView.getSourceUri());
+    }
+
+    @Test
+    public void keptAfterLoaded() {
+        Bitmap bitmap = cacheLoaded();
+        photoView.loadImageURI(uri);
+        assertSame(bitmap, getShownBitmap());
+        assertEquals(uri, photoView.getSourceUri());
+    }
+
+    @Test
+    public void keptAfterPreviewSwapped() {
+        Bitmap bitmap = cacheLoaded();
+        photoView.loadImageURI(uri, Bitmap.createBitmap(200, 150, Bitmap.Config.ARGB_8888));
+        assertSame(bitmap, getShownBitmap());
+        assertEquals(uri, photoView.getSourceUri());
+    }
+
+    @Test
+    public void clearedBySetImageBitmap() {
+        photoView.loadImageURI(uri, Bitmap.createBitmap(200, 150, Bitmap.Config.ARGB_8888));
+        photoView.setImageBitmap(Bitmap.createBitmap(200, 150, Bitmap.Config.ARGB_8888));
+        assertNull(photoView.getSourceUri());
+    }
+}
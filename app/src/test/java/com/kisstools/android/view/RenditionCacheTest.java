@@ -0,0 +1,82 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class RenditionCacheTest {
+
+    /**
+     * the offset of the config code in the header
+     */
+    private static final int CONFIG_OFFSET = 12;
+
+    private RenditionCache cache;
+
+    private String key;
+
+    @Before
+    public void setUp() {
+        cache = RenditionCache.getInstance(RuntimeEnvironment.application);
+        key = "file:///sdcard/photo-" + System.nanoTime() + ".jpg@720x1280#0";
+    }
+
+    @Test
+    public void configKept() {
+        cache.put(key, Bitmap.createBitmap(20, 10, Bitmap.Config.ARGB_8888));
+        Bitmap bitmap = cache.get(key);
+        assertNotNull(bitmap);
+        assertEquals(Bitmap.Config.ARGB_8888, bitmap.getConfig());
+        assertEquals(20, bitmap.getWidth());
+        assertEquals(10, bitmap.getHeight());
+    }
+
+    @Test
+    public void unknownConfigDropped() throws Exception {
+        File directory = new File(RuntimeEnvironment.application.getCacheDir(),
+                "photo_renditions");
+        File[] before = directory.listFiles();
+        cache.put(key, Bitmap.createBitmap(20, 10, Bitmap.Config.ARGB_8888));
+        File file = findNewFile(directory, before);
+
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(CONFIG_OFFSET);
+            output.writeInt(99);
+        } finally {
+            output.close();
+        }
+        assertNull(cache.get(key));
+        assertFalse(file.exists());
+    }
+
+    private static File findNewFile(File directory, File[] before) {
+        for (File file : directory.listFiles()) {
+            boolean found = false;
+            for (int i = 0; before != null && i < before.length; i++) {
+                found |= before[i].equals(file);
+            }
+            if (!found) {
+                return file;
+            }
+        }
+        throw new AssertionError("no rendition written");
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowChoreographer;
+
+/**
+ * post the frame callbacks a frame interval later on the main looper and
+ * pass the uptime as the frame time, as the display does. the default shadow
+ * runs them at once with a frame time of its own, so the animations of the
+ * view never reach their end on the clock of the paused looper
+ */
+@Implements(Choreographer.class)
+public class ShadowFrameChoreographer extends ShadowChoreographer {
+
+    static final long FRAME_INTERVAL = 16;
+
+    private static final long NANOS_PER_MS = 1000000;
+
+    private Handler handler = new Handler(Looper.getMainLooper());
+
+    @Implementation
+    @Override
+    public void postFrameCallbackDelayed(final Choreographer.FrameCallback callback,
+            long delayMillis) {
+        handler.postAtTime(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.doFrame(SystemClock.uptimeMillis() * NANOS_PER_MS);
+            }
+        }, callback, SystemClock.uptimeMillis() + FRAME_INTERVAL + delayMillis);
+    }
+
+    @Implementation
+    @Override
+    public void removeFrameCallback(Choreographer.FrameCallback callback) {
+        handler.removeCallbacksAndMessages(callback);
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import android.view.MotionEvent;
+import android.view.MotionEvent.PointerCoords;
+import android.view.MotionEvent.PointerProperties;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * the native input events behind {@link MotionEvent}, the default shadow of
+ * robolectric keeps two pointers and no history, which is not enough to
+ * replay a pinch with the batched samples. the java side of motion event
+ * runs unchanged on top of these natives
+ */
+@Implements(MotionEvent.class)
+public class ShadowMotionEventNatives {
+
+    private static final int HISTORY_CURRENT = Integer.MIN_VALUE;
+
+    private static final HashMap<Long, NativeEvent> EVENTS = new HashMap<Long, NativeEvent>();
+
+    private static long nextPtr = 1;
+
+    private static class NativeEvent {
+
+        int deviceId;
+
+        int source;
+
+        int action;
+
+        int flags;
+
+        int edgeFlags;
+
+        int metaState;
+
+        int buttonState;
+
+        float xOffset, yOffset;
+
+        float xPrecision, yPrecision;
+
+        long downTimeNanos;
+
+        PointerProperties[] properties;
+
+        ArrayList<Long> sampleTimes = new ArrayList<Long>();
+
+        ArrayList<PointerCoords[]> samples = new ArrayList<PointerCoords[]>();
+
+        int getSampleIndex(int historyPos) {
+            return historyPos == HISTORY_CURRENT ? samples.size() - 1 : historyPos;
+        }
+
+        void addSample(long eventTimeNanos, PointerCoords[] coords) {
+            PointerCoords[] copies = new PointerCoords[properties.length];
+            for (int i = 0; i < copies.length; i++) {
+                copies[i] = new PointerCoords(coords[i]);
+            }
+            sampleTimes.add(eventTimeNanos);
+            samples.add(copies);
+        }
+
+        NativeEvent copy(boolean keepHistory) {
+            NativeEvent event = new NativeEvent();
+            event.deviceId = deviceId;
+            event.source = source;
+            event.action = action;
+            event.flags = flags;
+            event.edgeFlags = edgeFlags;
+            event.metaState = metaState;
+            event.buttonState = buttonState;
+            event.xOffset = xOffset;
+            event.yOffset = yOffset;
+            event.xPrecision = xPrecision;
+            event.yPrecision = yPrecision;
+            event.downTimeNanos = downTimeNanos;
+            event.properties = properties;
+            int first = keepHistory ? 0 : samples.size() - 1;
+            for (int i = first; i < samples.size(); i++) {
+                event.sampleTimes.add(sampleTimes.get(i));
+                event.samples.add(samples.get(i));
+            }
+            return event;
+        }
+    }
+
+    private static synchronized NativeEvent get(long nativePtr) {
+        NativeEvent event = EVENTS.get(nativePtr);
+        if (event == null) {
+            throw new IllegalStateException("no native event " + nativePtr);
+        }
+        return event;
+    }
+
+    private static synchronized long put(long nativePtr, NativeEvent event) {
+        if (nativePtr == 0) {
+            nativePtr = nextPtr++;
+        }
+        EVENTS.put(nativePtr, event);
+        return nativePtr;
+    }
+
+    @Implementation
+    public static long nativeInitialize(long nativePtr, int deviceId, int source, int action,
+            int flags, int edgeFlags, int metaState, int buttonState, float xOffset,
+            float yOffset, float xPrecision, float yPrecision, long downTimeNanos,
+            long eventTimeNanos, int pointerCount, PointerProperties[] pointerProperties,
+            PointerCoords[] pointerCoords) {
+        NativeEvent event = new NativeEvent();
+        event.deviceId = deviceId;
+        event.source = source;
+        event.action = action;
+        event.flags = flags;
+        event.edgeFlags = edgeFlags;
+        event.metaState = metaState;
+        event.buttonState = buttonState;
+        event.xOffset = xOffset;
+        event.yOffset = yOffset;
+        event.xPrecision = xPrecision;
+        event.yPrecision = yPrecision;
+        event.downTimeNanos = downTimeNanos;
+        event.properties = new PointerProperties[pointerCount];
+        for (int i = 0; i < pointerCount; i++) {
+            event.properties[i] = new PointerProperties(pointerProperties[i]);
+        }
+        event.addSample(eventTimeNanos, pointerCoords);
+        return put(nativePtr, event);
+    }
+
+    @Implementation
+    public static long nativeCopy(long destNativePtr, long sourceNativePtr, boolean keepHistory) {
+        return put(destNativePtr, get(sourceNativePtr).copy(keepHistory));
+    }
+
+    @Implementation
+    public static synchronized void nativeDispose(long nativePtr) {
+        EVENTS.remove(nativePtr);
+    }
+
+    @Implementation
+    public static void nativeAddBatch(long nativePtr, long eventTimeNanos,
+            PointerCoords[] pointerCoords, int metaState) {
+        NativeEvent event = get(nativePtr);
+        event.metaState |= metaState;
+        event.addSample(eventTimeNanos, pointerCoords);
+    }
+
+    @Implementation
+    public static int nativeGetDeviceId(long nativePtr) {
+        return get(nativePtr).deviceId;
+    }
+
+    @Implementation
+    public static int nativeGetSource(long nativePtr) {
+        return get(nativePtr).source;
+    }
+
+    @Implementation
+    public static int nativeSetSource(long nativePtr, int source) {
+        get(nativePtr).source = source;
+        return source;
+    }
+
+    @Implementation
+    public static int nativeGetAction(long nativePtr) {
+        return get(nativePtr).action;
+    }
+
+    @Implementation
+    public static void nativeSetAction(long nativePtr, int action) {
+        get(nativePtr).action = action;
+    }
+
+    @Implementation
+    public static boolean nativeIsTouchEvent(long nativePtr) {
+        int action = get(nativePtr).action & MotionEvent.ACTION_MASK;
+        return action != MotionEvent.ACTION_HOVER_MOVE && action != MotionEvent.ACTION_SCROLL
+                && action != MotionEvent.ACTION_HOVER_ENTER
+                && action != MotionEvent.ACTION_HOVER_EXIT;
+    }
+
+    @Implementation
+    public static int nativeGetFlags(long nativePtr) {
+        return get(nativePtr).flags;
+    }
+
+    @Implementation
+    public static void nativeSetFlags(long nativePtr, int flags) {
+        get(nativePtr).flags = flags;
+    }
+
+    @Implementation
+    public static int nativeGetEdgeFlags(long nativePtr) {
+        return get(nativePtr).edgeFlags;
+    }
+
+    @Implementation
+    public static void nativeSetEdgeFlags(long nativePtr, int edgeFlags) {
+        get(nativePtr).edgeFlags = edgeFlags;
+    }
+
+    @Implementation
+    public static int nativeGetMetaState(long nativePtr) {
+        return get(nativePtr).metaState;
+    }
+
+    @Implementation
+    public static int nativeGetButtonState(long nativePtr) {
+        return get(nativePtr).buttonState;
+    }
+
+    @Implementation
+    public static void nativeOffsetLocation(long nativePtr, float deltaX, float deltaY) {
+        NativeEvent event = get(nativePtr);
+        event.xOffset += deltaX;
+        event.yOffset += deltaY;
+    }
+
+    @Implementation
+    public static float nativeGetXOffset(long nativePtr) {
+        return get(nativePtr).xOffset;
+    }
+
+    @Implementation
+    public static float nativeGetYOffset(long nativePtr) {
+        return get(nativePtr).yOffset;
+    }
+
+    @Implementation
+    public static float nativeGetXPrecision(long nativePtr) {
+        return get(nativePtr).xPrecision;
+    }
+
+    @Implementation
+    public static float nativeGetYPrecision(long nativePtr) {
+        return get(nativePtr).yPrecision;
+    }
+
+    @Implementation
+    public static long nativeGetDownTimeNanos(long nativePtr) {
+        return get(nativePtr).downTimeNanos;
+    }
+
+    @Implementation
+    public static void nativeSetDownTimeNanos(long nativePtr, long downTimeNanos) {
+        get(nativePtr).downTimeNanos = downTimeNanos;
+    }
+
+    @Implementation
+    public static int nativeGetPointerCount(long nativePtr) {
+        return get(nativePtr).properties.length;
+    }
+
+    @Implementation
+    public static int nativeGetPointerId(long nativePtr, int pointerIndex) {
+        return get(nativePtr).properties[pointerIndex].id;
+    }
+
+    @Implementation
+    public static int nativeGetToolType(long nativePtr, int pointerIndex) {
+        return get(nativePtr).properties[pointerIndex].toolType;
+    }
+
+    @Implementation
+    public static int nativeFindPointerIndex(long nativePtr, int pointerId) {
+        PointerProperties[] properties = get(nativePtr).properties;
+        for (int i = 0; i < properties.length; i++) {
+            if (properties[i].id == pointerId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Implementation
+    public static int nativeGetHistorySize(long nativePtr) {
+        return get(nativePtr).samples.size() - 1;
+    }
+
+    @Implementation
+    public static long nativeGetEventTimeNanos(long nativePtr, int historyPos) {
+        NativeEvent event = get(nativePtr);
+        return event.sampleTimes.get(event.getSampleIndex(historyPos));
+    }
+
+    @Implementation
+    public static float nativeGetRawAxisValue(long nativePtr, int axis, int pointerIndex,
+            int historyPos) {
+        NativeEvent event = get(nativePtr);
+        return event.samples.get(event.getSampleIndex(historyPos))[pointerIndex]
+                .getAxisValue(axis);
+    }
+
+    @Implementation
+    public static float nativeGetAxisValue(long nativePtr, int axis, int pointerIndex,
+            int historyPos) {
+        NativeEvent event = get(nativePtr);
+        float value = nativeGetRawAxisValue(nativePtr, axis, pointerIndex, historyPos);
+        if (axis == MotionEvent.AXIS_X) {
+            return value + event.xOffset;
+        } else if (axis == MotionEvent.AXIS_Y) {
+            return value + event.yOffset;
+        }
+        return value;
+    }
+
+    @Implementation
+    public static void nativeGetPointerCoords(long nativePtr, int pointerIndex, int historyPos,
+            PointerCoords outPointerCoords) {
+        NativeEvent event = get(nativePtr);
+        outPointerCoords.copyFrom(event.samples.get(event.getSampleIndex(historyPos))[pointerIndex]);
+        outPointerCoords.x += event.xOffset;
+        outPointerCoords.y += event.yOffset;
+    }
+
+    @Implementation
+    public static void nativeGetPointerProperties(long nativePtr, int pointerIndex,
+            PointerProperties outPointerProperties) {
+        outPointerProperties.copyFrom(get(nativePtr).properties[pointerIndex]);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.view;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VelocityEstimatorTest {
+
+    private static final float DELTA = 1f;
+
+    private static final float MAX_VELOCITY = 8000;
+
+    private VelocityEstimator estimator;
+
+    @Before
+    public void setUp() {
+        estimator = new VelocityEstimator();
+    }
+
+    /**
+     * add samples from the time at a constant velocity in pixels per
+     * millisecond
+     */
+    private void addSamples(float x, float y, long time, float speedX, float speedY,
+            int count, long interval) {
+        for (int i = 0; i < count; i++) {
+            estimator.addSample(x + speedX * i * interval, y + speedY * i * interval,
+                    time + i * interval);
+        }
+    }
+
+    @Test
+    public void constantVelocity() {
+        addSamples(100, 500, 0, 2, -1, 10, 8);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(2000, estimator.getVelocityX(), DELTA);
+        assertEquals(-1000, estimator.getVelocityY(), DELTA);
+    }
+
+    @Test
+    public void clampedToMaxVelocity() {
+        addSamples(0, 0, 0, 20, -20, 10, 8);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(MAX_VELOCITY, estimator.getVelocityX(), 0);
+        assertEquals(-MAX_VELOCITY, estimator.getVelocityY(), 0);
+    }
+
+    @Test
+    public void oldSamplesLeaveTheRing() {
+        // fast at first, the last 16 samples are slow
+        addSamples(0, 0, 0, 10, 0, 24, 4);
+        addSamples(1000, 0, 96, 1, 0, 16, 4);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(1000, estimator.getVelocityX(), DELTA);
+        assertEquals(0, estimator.getVelocityY(), DELTA);
+    }
+
+    @Test
+    public void samplesOutOfHorizonIgnored() {
+        // slow for a long time, then fast within the horizon
+        addSamples(0, 0, 0, 0.1f, 0, 6, 20);
+        addSamples(100, 0, 120, 3, 0, 10, 10);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(3000, estimator.getVelocityX(), DELTA);
+    }
+
+    @Test
+    public void stoppedBeforeGap() {
+        addSamples(0, 0, 0, 2, 2, 10, 8);
+        // held still, then a single sample after a long gap
+        estimator.addSample(144, 144, 72 + 60);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(0, estimator.getVelocityX(), 0);
+        assertEquals(0, estimator.getVelocityY(), 0);
+    }
+
+    @Test
+    public void outOfOrderSampleClears() {
+        addSamples(0, 0, 100, 2, 2, 10, 8);
+        estimator.addSample(0, 0, 50);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(0, estimator.getVelocityX(), 0);
+
+        estimator.addSample(8, 0, 54);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(2000, estimator.getVelocityX(), DELTA);
+    }
+
+    @Test
+    public void clearResetsVelocity() {
+        addSamples(0, 0, 0, 2, 2, 10, 8);
+        estimator.computeVelocity(MAX_VELOCITY);
+        estimator.clear();
+        assertEquals(0, estimator.getVelocityX(), 0);
+        estimator.computeVelocity(MAX_VELOCITY);
+        assertEquals(0, estimator.getVelocityY(), 0);
+    }
+}
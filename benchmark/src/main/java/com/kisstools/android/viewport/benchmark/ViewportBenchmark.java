@@ -0,0 +1,95 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.viewport.benchmark;
+
+import com.kisstools.android.viewport.CropGrid;
+import com.kisstools.android.viewport.Viewport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * per event cost of the gesture math, each benchmark replays one event of
+ * a drag, a pinch, a double tap or a crop drag on a photo larger than the view
+ */
+@State(Scope.Thread)
+public class ViewportBenchmark {
+
+    private static final float VIEW_WIDTH = 1080;
+
+    private static final float VIEW_HEIGHT = 1920;
+
+    private static final float PHOTO_WIDTH = 4000;
+
+    private static final float PHOTO_HEIGHT = 3000;
+
+    private static final float EDGE_SIZE = 90;
+
+    private Viewport viewport;
+
+    private CropGrid grid;
+
+    private float[] out;
+
+    private float direction;
+
+    @Setup
+    public void setup() {
+        viewport = new Viewport();
+        viewport.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+        viewport.updateFactors(PHOTO_WIDTH, PHOTO_HEIGHT, true);
+        zoomTo(viewport.getZoomFactor());
+
+        grid = new CropGrid(4 * EDGE_SIZE);
+        grid.set(200, 600, 880, 1280);
+        out = new float[2];
+        direction = 1;
+    }
+
+    private void zoomTo(float scale) {
+        float width = PHOTO_WIDTH * scale;
+        float height = PHOTO_HEIGHT * scale;
+        float left = (VIEW_WIDTH - width) / 2;
+        float top = (VIEW_HEIGHT - height) / 2;
+        viewport.setPhoto(left, top, left + width, top + height, scale);
+    }
+
+    @Benchmark
+    public float drag() {
+        direction = -direction;
+        float deltaX = viewport.clampTranslateX(12 * direction);
+        float deltaY = viewport.clampTranslateY(-8 * direction);
+        return deltaX + deltaY;
+    }
+
+    @Benchmark
+    public float pinch() {
+        direction = -direction;
+        return viewport.clampScale(1f + 0.02f * direction, false);
+    }
+
+    @Benchmark
+    public float[] doubleTapFocus() {
+        viewport.calScaleFocus(viewport.getToggleScale(), 120, 300, out);
+        return out;
+    }
+
+    @Benchmark
+    public float cropDrag() {
+        direction = -direction;
+        grid.drag(CropGrid.DRAG_LEFT | CropGrid.DRAG_TOP, 6 * direction, 6 * direction,
+                0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+        return grid.getLeft();
+    }
+
+    @Benchmark
+    public float settle() {
+        float targetScale = viewport.getAdjustScale();
+        boolean translate = viewport.getAdjustTranslate(out);
+        return translate ? targetScale + out[0] : targetScale;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.viewport;
+
+/**
+ * the hit test and drag math of the crop grid, the grid is kept within
+ * the given bounds and not smaller than the min size
+ */
+public class CropGrid {
+
+    public static final int DRAG_NONE = 0;
+
+    public static final int DRAG_LEFT = 1;
+
+    public static final int DRAG_TOP = 2;
+
+    public static final int DRAG_RIGHT = 4;
+
+    public static final int DRAG_BOTTOM = 8;
+
+    public static final int DRAG_CENTER = 16;
+
+    private float left, top, right, bottom;
+
+    private float minSize;
+
+    private boolean square;
+
+    public CropGrid(float minSize) {
+        this.minSize = minSize;
+    }
+
+    public void setSquare(boolean square) {
+        this.square = square;
+    }
+
+    public void set(float left, float top, float right, float bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public float getLeft() {
+        return left;
+    }
+
+    public float getTop() {
+        return top;
+    }
+
+    public float getRight() {
+        return right;
+    }
+
+    public float getBottom() {
+        return bottom;
+    }
+
+    /**
+     * get the drag type of a touch at (px, py)
+     */
+    public int getDrag(float px, float py, float edgeSize) {
+        int type = DRAG_NONE;
+
+        if ((py >= (top - edgeSize) && py <= (bottom + edgeSize))) {
+            if (Math.abs(px - left) < edgeSize) {
+                type |= DRAG_LEFT;
+            }
+            if (Math.abs(px - right) < edgeSize) {
+                type |= DRAG_RIGHT;
+            }
+        }
+        if ((px >= (left - edgeSize) && (px <= (right + edgeSize)))) {
+            if (Math.abs(py - top) < edgeSize) {
+                type |= DRAG_TOP;
+            }
+            if (Math.abs(py - bottom) < edgeSize) {
+                type |= DRAG_BOTTOM;
+            }
+        }
+
+        if (Math.abs(px - (left + right) / 2) < edgeSize
+                && Math.abs(py - (top + bottom) / 2) < edgeSize) {
+            type = DRAG_CENTER;
+        }
+
+        if (square && isPowerOfTwo(type)) {
+            type = DRAG_CENTER;
+        }
+        return type;
+    }
+
+    /**
+     * move the edges of the drag type by the delta, the grid is kept within
+     * the bounds
+     */
+    public void drag(int dragType, float deltaX, float deltaY,
+            float boundLeft, float boundTop, float boundRight, float boundBottom) {
+        if ((dragType & DRAG_CENTER) != 0) {
+            if (top + deltaY >= boundTop && left + deltaX >= boundLeft
+                    && right + deltaX <= boundRight && bottom + deltaY <= boundBottom) {
+                left += deltaX;
+                top += deltaY;
+                right += deltaX;
+                bottom += deltaY;
+            }
+            return;
+        }
+
+        if (square) {
+            float leftSpace = left - boundLeft;
+            float topSpace = top - boundTop;
+            float rightSpace = boundRight - right;
+            float bottomSpace = boundBottom - bottom;
+            if (deltaX > 0) {
+                deltaX = deltaX < rightSpace ? deltaX : rightSpace;
+            } else {
+                deltaX = -deltaX < leftSpace ? deltaX : -leftSpace;
+            }
+
+            if (deltaY > 0) {
+                deltaY = deltaY < bottomSpace ? deltaY : bottomSpace;
+            } else {
+                deltaY = -deltaY < topSpace ? deltaY : -topSpace;
+            }
+
+            float delta = Math.min(Math.abs(deltaX), Math.abs(deltaY));
+            if (delta == 0) {
+                return;
+            }
+            deltaX = delta * (deltaX / Math.abs(deltaX));
+            deltaY = delta * (deltaY / Math.abs(deltaY));
+        }
+
+        if ((dragType & DRAG_LEFT) != 0) {
+            deltaX = deltaX + left < boundLeft ? boundLeft - left : deltaX;
+            deltaX = left + deltaX + minSize > right ? right - left - minSize : deltaX;
+            left += deltaX;
+        }
+        if ((dragType & DRAG_TOP) != 0) {
+            deltaY = deltaY + top < boundTop ? boundTop - top : deltaY;
+            deltaY = top + deltaY + minSize > bottom ? bottom - top - minSize : deltaY;
+            top += deltaY;
+        }
+        if ((dragType & DRAG_RIGHT) != 0) {
+            deltaX = right + deltaX > boundRight ? boundRight - right : deltaX;
+            deltaX = (right + deltaX - minSize) < left ? (minSize - right + left) : deltaX;
+            right += deltaX;
+        }
+        if ((dragType & DRAG_BOTTOM) != 0) {
+            deltaY = bottom + deltaY > boundBottom ? boundBottom - bottom : deltaY;
+            deltaY = (bottom + deltaY - minSize) < top ? (minSize - bottom + top) : deltaY;
+            bottom += deltaY;
+        }
+    }
+
+    public static boolean isPowerOfTwo(int num) {
+        return num > 0 & (num & (num - 1)) == 0;
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.viewport;
+
+/**
+ * the clamping and scale focus math of a photo displayed in a view. the
+ * state is kept in primitive floats so it can run on a plain jvm
+ */
+public class Viewport {
+
+    public static final float MIN_FACTOR = 0.6f;
+
+    public static final float FIT_FACTOR = 1.0f;
+
+    public static final float ZOOM_FACTOR = 2.0f;
+
+    public static final float MAX_FACTOR = 3.0f;
+
+    /**
+     * returned by {@link #getAdjustScale()} if the scale is in range
+     */
+    public static final float NO_SCALE = -1;
+
+    private float viewWidth, viewHeight;
+
+    private float left, top, right, bottom;
+
+    private float scale;
+
+    private float fitScale;
+
+    private float normalFactor;
+
+    private float minFactor;
+
+    private float zoomFactor;
+
+    private float maxFactor;
+
+    public Viewport() {
+        this.scale = 1;
+    }
+
+    public void setViewSize(float viewWidth, float viewHeight) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+    }
+
+    /**
+     * @param scale the scale of the photo, the bounds is the bounding rect of
+     *              the scaled and rotated photo in the view
+     */
+    public void setPhoto(float left, float top, float right, float bottom, float scale) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.scale = scale;
+    }
+
+    /**
+     * update the scale factors to fit the photo into view
+     *
+     * @param width    width of the rotated photo at scale 1
+     * @param height   height of the rotated photo at scale 1
+     * @param fitSpace scale up the photo smaller than the view
+     */
+    public void updateFactors(float width, float height, boolean fitSpace) {
+        float scaleX = viewWidth / width;
+        float scaleY = viewHeight / height;
+        fitScale = scaleX > scaleY ? scaleY : scaleX;
+        if (fitSpace || fitScale < 1) {
+            normalFactor = fitScale * FIT_FACTOR;
+        } else {
+            normalFactor = 1;
+        }
+        minFactor = normalFactor * MIN_FACTOR;
+        zoomFactor = normalFactor * ZOOM_FACTOR;
+        maxFactor = normalFactor * MAX_FACTOR;
+    }
+
+    public float getViewWidth() {
+        return viewWidth;
+    }
+
+    public float getViewHeight() {
+        return viewHeight;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public float getFitScale() {
+        return fitScale;
+    }
+
+    public float getNormalFactor() {
+        return normalFactor;
+    }
+
+    public float getMinFactor() {
+        return minFactor;
+    }
+
+    public float getZoomFactor() {
+        return zoomFactor;
+    }
+
+    public float getMaxFactor() {
+        return maxFactor;
+    }
+
+    public float clampTranslateX(float delta) {
+        return clampTranslate(delta, viewWidth, left, right);
+    }
+
+    public float clampTranslateY(float delta) {
+        return clampTranslate(delta, viewHeight, top, bottom);
+    }
+
+    /**
+     * limit the translate so the photo larger than the view does not leave
+     * space at the edge of the view
+     */
+    public static float clampTranslate(float delta, float viewSize, float min, float max) {
+        if ((max - min) <= viewSize || delta == 0) {
+            return 0;
+        }
+
+        if (delta > 0 && (min + delta) > 0) {
+            return 0 - min > delta ? delta : 0 - min;
+        } else if (delta < 0 && (max + delta) < viewSize) {
+            return viewSize - max < delta ? delta : viewSize - max;
+        } else {
+            // delta < 0 && (max + delta) >= viewSize
+            // delta > 0 && (min + delta) <= 0
+            return delta;
+        }
+    }
+
+    /**
+     * limit the scale factor of a pinch, the zoom factor is exceeded only if
+     * the pinch begins over it
+     */
+    public float clampScale(float factor, boolean overZoom) {
+        float nextScale = scale * factor;
+        if (nextScale > maxFactor) {
+            factor = maxFactor / scale;
+        } else if (!overZoom && nextScale > zoomFactor) {
+            factor = zoomFactor / scale;
+        } else if (nextScale < minFactor) {
+            factor = minFactor / scale;
+        }
+        return factor;
+    }
+
+    /**
+     * the target scale of a double tap
+     */
+    public float getToggleScale() {
+        return scale == normalFactor ? zoomFactor : normalFactor;
+    }
+
+    /**
+     * get the scale to settle the photo at, or {@link #NO_SCALE}
+     */
+    public float getAdjustScale() {
+        if (scale > maxFactor) {
+            return maxFactor;
+        } else if (scale > zoomFactor) {
+            return zoomFactor;
+        } else if (scale < normalFactor) {
+            return normalFactor;
+        }
+        return NO_SCALE;
+    }
+
+    /**
+     * get the translate to move the photo back to the bounds of the view
+     *
+     * @param out receive the translate x and y
+     * @return false if no translate is required
+     */
+    public boolean getAdjustTranslate(float[] out) {
+        float px = 0;
+        float py = 0;
+
+        float horSpace = (viewWidth - (right - left)) / 2;
+        float verSpace = (viewHeight - (bottom - top)) / 2;
+
+        if (left > 0) {
+            px = horSpace > 0 ? horSpace - left : -left;
+        }
+        if (top > 0) {
+            py = verSpace > 0 ? verSpace - top : -top;
+        }
+        if (right < viewWidth) {
+            px = horSpace > 0 ? viewWidth - right - horSpace : viewWidth - right;
+        }
+        if (bottom < viewHeight) {
+            py = verSpace > 0 ? viewHeight - bottom - verSpace : viewHeight - bottom;
+        }
+        out[0] = px;
+        out[1] = py;
+        return px != 0 || py != 0;
+    }
+
+    /**
+     * get the focus point to scale the photo around (x, y), the photo should
+     * stay within the bounds of the view after scaled
+     *
+     * @param out receive the focus x and y
+     */
+    public void calScaleFocus(float targetScale, float x, float y, float[] out) {
+        float width = right - left;
+        float height = bottom - top;
+
+        // bounds of the photo after scaled around the point
+        float factor = targetScale / scale;
+        float targetWidth = width * factor;
+        float targetHeight = height * factor;
+        float targetRight = x + (right - x) * factor;
+        float targetBottom = y + (bottom - y) * factor;
+        float scaledLeft = x + (left - x) * factor;
+        float scaledTop = y + (top - y) * factor;
+        if (scaledLeft <= 0 && scaledTop <= 0 && targetRight >= viewWidth && targetBottom >= viewHeight) {
+            out[0] = x;
+            out[1] = y;
+            return;
+        }
+
+        float targetLeft = scaledLeft < 0 ? scaledLeft : 0;
+        float targetTop = scaledTop < 0 ? scaledTop : 0;
+
+        // after scale, the photo will display within the view
+        if (targetScale <= fitScale) {
+            targetLeft = (viewWidth - targetWidth) / 2;
+            targetTop = (viewHeight - targetHeight) / 2;
+        } else {
+            if (targetWidth > viewWidth) {
+                targetLeft = targetRight < viewWidth ? viewWidth - targetWidth : targetLeft;
+            } else {
+                targetLeft = (viewWidth - targetWidth) / 2;
+            }
+            if (targetHeight > viewHeight) {
+                targetTop = targetBottom < viewHeight ? viewHeight - targetHeight : targetTop;
+            } else {
+                targetTop = (viewHeight - targetHeight) / 2;
+            }
+        }
+
+        out[0] = (left * targetWidth - targetLeft * width) / (targetWidth - width);
+        out[1] = (top * targetHeight - targetTop * height) / (targetHeight - height);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.viewport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CropGridTest {
+
+    private static final float DELTA = 0.001f;
+
+    private static final float EDGE = 30;
+
+    private static final float MIN_SIZE = 50;
+
+    private CropGrid grid;
+
+    @Before
+    public void setUp() {
+        grid = new CropGrid(MIN_SIZE);
+        grid.set(100, 100, 400, 400);
+    }
+
+    private void assertGrid(float left, float top, float right, float bottom) {
+        assertEquals(left, grid.getLeft(), DELTA);
+        assertEquals(top, grid.getTop(), DELTA);
+        assertEquals(right, grid.getRight(), DELTA);
+        assertEquals(bottom, grid.getBottom(), DELTA);
+    }
+
+    @Test
+    public void dragType() {
+        assertEquals(CropGrid.DRAG_LEFT, grid.getDrag(110, 300, EDGE));
+        assertEquals(CropGrid.DRAG_RIGHT | CropGrid.DRAG_BOTTOM, grid.getDrag(390, 410, EDGE));
+        assertEquals(CropGrid.DRAG_CENTER, grid.getDrag(260, 240, EDGE));
+        assertEquals(CropGrid.DRAG_NONE, grid.getDrag(250, 180, EDGE));
+        assertEquals(CropGrid.DRAG_NONE, grid.getDrag(600, 600, EDGE));
+    }
+
+    @Test
+    public void squareDragsCornersOrCenter() {
+        grid.setSquare(true);
+        assertEquals(CropGrid.DRAG_CENTER, grid.getDrag(110, 300, EDGE));
+        assertEquals(CropGrid.DRAG_LEFT | CropGrid.DRAG_TOP, grid.getDrag(100, 100, EDGE));
+    }
+
+    @Test
+    public void dragCenterWithinBounds() {
+        grid.drag(CropGrid.DRAG_CENTER, 50, -50, 0, 0, 500, 500);
+        assertGrid(150, 50, 450, 350);
+        // out of the bounds, not moved
+        grid.drag(CropGrid.DRAG_CENTER, 100, 0, 0, 0, 500, 500);
+        assertGrid(150, 50, 450, 350);
+    }
+
+    @Test
+    public void dragEdgeClampedToBounds() {
+        grid.drag(CropGrid.DRAG_LEFT | CropGrid.DRAG_TOP, -200, -200, 0, 0, 500, 500);
+        assertGrid(0, 0, 400, 400);
+        grid.drag(CropGrid.DRAG_RIGHT, 300, 0, 0, 0, 500, 500);
+        assertGrid(0, 0, 500, 400);
+    }
+
+    @Test
+    public void dragEdgeKeepsMinSize() {
+        grid.drag(CropGrid.DRAG_LEFT, 400, 0, 0, 0, 500, 500);
+        assertGrid(400 - MIN_SIZE, 100, 400, 400);
+        grid.drag(CropGrid.DRAG_BOTTOM, 0, -400, 0, 0, 500, 500);
+        assertGrid(400 - MIN_SIZE, 100, 400, 100 + MIN_SIZE);
+    }
+
+    @Test
+    public void squareDragKeepsSquare() {
+        grid.setSquare(true);
+        grid.drag(CropGrid.DRAG_RIGHT | CropGrid.DRAG_BOTTOM, 50, 20, 0, 0, 500, 500);
+        assertGrid(100, 100, 420, 420);
+        // limited by the space at the right
+        grid.drag(CropGrid.DRAG_RIGHT | CropGrid.DRAG_BOTTOM, 200, 200, 0, 0, 450, 500);
+        assertGrid(100, 100, 450, 450);
+    }
+
+    @Test
+    public void powerOfTwo() {
+        assertTrue(CropGrid.isPowerOfTwo(CropGrid.DRAG_LEFT));
+        assertTrue(CropGrid.isPowerOfTwo(CropGrid.DRAG_CENTER));
+        assertFalse(CropGrid.isPowerOfTwo(CropGrid.DRAG_LEFT | CropGrid.DRAG_TOP));
+        assertFalse(CropGrid.isPowerOfTwo(CropGrid.DRAG_NONE));
+    }
+}
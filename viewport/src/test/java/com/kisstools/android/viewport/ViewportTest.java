@@ -0,0 +1,155 @@
+/**
+ * @author dawson dong
+ */
+
+package com.kisstools.android.viewport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ViewportTest {
+
+    private static final float DELTA = 0.001f;
+
+    private static final float VIEW_WIDTH = 720;
+
+    private static final float VIEW_HEIGHT = 1280;
+
+    private Viewport viewport;
+
+    @Before
+    public void setUp() {
+        viewport = new Viewport();
+        viewport.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+    }
+
+    /**
+     * show the photo of the size fitted into the view at the scale
+     */
+    private void showPhoto(float width, float height, float scale) {
+        float scaledWidth = width * scale;
+        float scaledHeight = height * scale;
+        float left = (VIEW_WIDTH - scaledWidth) / 2;
+        float top = (VIEW_HEIGHT - scaledHeight) / 2;
+        viewport.setPhoto(left, top, left + scaledWidth, top + scaledHeight, scale);
+    }
+
+    @Test
+    public void factorsOfLargePhoto() {
+        viewport.updateFactors(2000, 1500, false);
+        assertEquals(0.36f, viewport.getFitScale(), DELTA);
+        assertEquals(0.36f, viewport.getNormalFactor(), DELTA);
+        assertEquals(0.36f * Viewport.MIN_FACTOR, viewport.getMinFactor(), DELTA);
+        assertEquals(0.36f * Viewport.ZOOM_FACTOR, viewport.getZoomFactor(), DELTA);
+        assertEquals(0.36f * Viewport.MAX_FACTOR, viewport.getMaxFactor(), DELTA);
+    }
+
+    @Test
+    public void factorsOfSmallPhoto() {
+        viewport.updateFactors(360, 320, false);
+        assertEquals(2, viewport.getFitScale(), DELTA);
+        assertEquals(1, viewport.getNormalFactor(), DELTA);
+
+        viewport.updateFactors(360, 320, true);
+        assertEquals(2, viewport.getNormalFactor(), DELTA);
+    }
+
+    @Test
+    public void clampTranslate() {
+        // smaller than the view
+        assertEquals(0, Viewport.clampTranslate(50, 720, 10, 710), DELTA);
+        // larger than the view
+        assertEquals(50, Viewport.clampTranslate(50, 720, -100, 900), DELTA);
+        assertEquals(100, Viewport.clampTranslate(150, 720, -100, 900), DELTA);
+        assertEquals(-150, Viewport.clampTranslate(-150, 720, -100, 900), DELTA);
+        assertEquals(-180, Viewport.clampTranslate(-200, 720, -100, 900), DELTA);
+        assertEquals(0, Viewport.clampTranslate(0, 720, -100, 900), DELTA);
+    }
+
+    @Test
+    public void clampScale() {
+        viewport.updateFactors(2000, 1500, false);
+        showPhoto(2000, 1500, viewport.getNormalFactor());
+        assertEquals(1.5f, viewport.clampScale(1.5f, false), DELTA);
+        assertEquals(Viewport.ZOOM_FACTOR, viewport.clampScale(2.5f, false), DELTA);
+        assertEquals(2.5f, viewport.clampScale(2.5f, true), DELTA);
+        assertEquals(Viewport.MAX_FACTOR, viewport.clampScale(10, true), DELTA);
+        assertEquals(Viewport.MIN_FACTOR, viewport.clampScale(0.1f, false), DELTA);
+    }
+
+    @Test
+    public void toggleScale() {
+        viewport.updateFactors(2000, 1500, false);
+        showPhoto(2000, 1500, viewport.getNormalFactor());
+        assertEquals(viewport.getZoomFactor(), viewport.getToggleScale(), DELTA);
+        showPhoto(2000, 1500, viewport.getZoomFactor());
+        assertEquals(viewport.getNormalFactor(), viewport.getToggleScale(), DELTA);
+    }
+
+    @Test
+    public void adjustScale() {
+        viewport.updateFactors(2000, 1500, false);
+        showPhoto(2000, 1500, viewport.getMaxFactor() * 1.1f);
+        assertEquals(viewport.getMaxFactor(), viewport.getAdjustScale(), DELTA);
+        showPhoto(2000, 1500, viewport.getZoomFactor() * 1.1f);
+        assertEquals(viewport.getZoomFactor(), viewport.getAdjustScale(), DELTA);
+        showPhoto(2000, 1500, viewport.getNormalFactor() * 0.9f);
+        assertEquals(viewport.getNormalFactor(), viewport.getAdjustScale(), DELTA);
+        showPhoto(2000, 1500, viewport.getNormalFactor() * 1.5f);
+        assertEquals(Viewport.NO_SCALE, viewport.getAdjustScale(), DELTA);
+    }
+
+    @Test
+    public void adjustTranslate() {
+        float[] out = new float[2];
+        // centered
+        viewport.setPhoto(10, 370, 710, 910, 1);
+        assertFalse(viewport.getAdjustTranslate(out));
+
+        // smaller than the view, moved to the right and the top
+        viewport.setPhoto(50, 300, 750, 840, 1);
+        assertTrue(viewport.getAdjustTranslate(out));
+        assertEquals(-40, out[0], DELTA);
+        assertEquals(70, out[1], DELTA);
+
+        // larger than the view, leaving space at the left
+        viewport.setPhoto(20, -100, 1020, 1400, 1);
+        assertTrue(viewport.getAdjustTranslate(out));
+        assertEquals(-20, out[0], DELTA);
+        assertEquals(0, out[1], DELTA);
+    }
+
+    @Test
+    public void scaleFocusKeepsPoint() {
+        viewport.updateFactors(2000, 1500, false);
+        showPhoto(4000, 3000, 0.72f);
+        float[] out = new float[2];
+        // the photo still covers the view after scaled around the center
+        viewport.calScaleFocus(1.08f, 360, 640, out);
+        assertEquals(360, out[0], DELTA);
+        assertEquals(640, out[1], DELTA);
+    }
+
+    @Test
+    public void scaleFocusCentersFittedPhoto() {
+        viewport.updateFactors(2000, 1500, false);
+        // zoomed in and moved to the left top
+        viewport.setPhoto(-900, -200, 540, 880, 0.72f);
+        float[] out = new float[2];
+        float targetScale = viewport.getNormalFactor();
+        viewport.calScaleFocus(targetScale, 100, 100, out);
+
+        float factor = targetScale / 0.72f;
+        float left = out[0] + (-900 - out[0]) * factor;
+        float right = out[0] + (540 - out[0]) * factor;
+        float top = out[1] + (-200 - out[1]) * factor;
+        float bottom = out[1] + (880 - out[1]) * factor;
+        assertEquals(0, left, 0.1f);
+        assertEquals(VIEW_WIDTH, right, 0.1f);
+        assertEquals(VIEW_HEIGHT - bottom, top, 0.1f);
+    }
+}